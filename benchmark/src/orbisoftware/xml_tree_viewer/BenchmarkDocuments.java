@@ -0,0 +1,193 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Generated documents for the benchmarks, in three shapes:
+ *
+ *   wide        one long list of small records below the root
+ *   deep        branches of elements nested a thousand levels deep
+ *   repetitive  an object model like RestaurantFOMmodule.xml, with nested
+ *               classes that repeat the same few tags and values
+ *
+ * Documents are written once to the directory in the system property
+ * xmltreeviewer.bench.dir (a temporary directory by default) and reused by
+ * later runs, as the largest take a while to write.
+ */
+public class BenchmarkDocuments {
+
+	public static final String WIDE = "wide";
+	public static final String DEEP = "deep";
+	public static final String REPETITIVE = "repetitive";
+
+	private static final String DIRECTORY_PROPERTY = "xmltreeviewer.bench.dir";
+
+	// Levels in each branch of the deep shape
+	private static final int DEEP_LEVELS = 1000;
+
+	// Subclasses of each class in the repetitive shape
+	private static final int SUBCLASSES = 4;
+
+	// A document of a shape and of at least the given size in megabytes
+	public static File get(String shape, int sizeMb) throws IOException {
+
+		File directory = new File(System.getProperty(DIRECTORY_PROPERTY,
+				new File(System.getProperty("java.io.tmpdir"), "xml-tree-viewer-bench").getPath()));
+		File file = new File(directory, shape + "-" + sizeMb + "mb.xml");
+
+		if (file.isFile()) {
+			return file;
+		}
+
+		// Written under another name first, so that an interrupted run does
+		// not leave a truncated document behind
+		directory.mkdirs();
+		File partial = new File(directory, file.getName() + ".part");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial),
+				StandardCharsets.UTF_8), 1 << 20)) {
+			write(shape, (long) sizeMb << 20, new CountingWriter(out));
+		}
+		Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return file;
+	}
+
+	private static void write(String shape, long size, CountingWriter out) throws IOException {
+
+		out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+
+		switch (shape) {
+		case WIDE:
+			writeWide(size, out);
+			break;
+		case DEEP:
+			writeDeep(size, out);
+			break;
+		case REPETITIVE:
+			writeRepetitive(size, out);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown document shape '" + shape + "'");
+		}
+	}
+
+	private static void writeWide(long size, CountingWriter out) throws IOException {
+
+		out.write("<records>\n");
+		for (int i = 0; out.count < size; i++) {
+			out.write("\t<record>\n");
+			out.write("\t\t<name>Record " + i + "</name>\n");
+			out.write("\t\t<value>" + (i * 7919L % 100000) + "</value>\n");
+			out.write("\t\t<status>" + (i % 3 == 0 ? "inactive" : "active") + "</status>\n");
+			out.write("\t\t<description>Record " + i + " of a flat list</description>\n");
+			out.write("\t</record>\n");
+		}
+		out.write("</records>\n");
+	}
+
+	// Not indented, the indentation would grow with the square of the depth
+	private static void writeDeep(long size, CountingWriter out) throws IOException {
+
+		out.write("<tree>\n");
+		for (int branch = 0; out.count < size; branch++) {
+			for (int level = 0; level < DEEP_LEVELS; level++) {
+				out.write("<node><name>Node " + branch + "." + level + "</name><level>" + level + "</level>\n");
+			}
+			for (int level = 0; level < DEEP_LEVELS; level++) {
+				out.write("</node>\n");
+			}
+		}
+		out.write("</tree>\n");
+	}
+
+	private static void writeRepetitive(long size, CountingWriter out) throws IOException {
+
+		out.write("<objectModel xmlns=\"http://www.sisostds.org/schemas/IEEE1516-2010\">\n");
+		out.write("\t<modelIdentification>\n");
+		out.write("\t\t<name>Generated FOM Module</name>\n");
+		out.write("\t\t<type>FOM</type>\n");
+		out.write("\t\t<version>1.0</version>\n");
+		out.write("\t</modelIdentification>\n");
+		out.write("\t<objects>\n");
+		out.write("\t\t<objectClass>\n");
+		out.write("\t\t\t<name>HLAobjectRoot</name>\n");
+
+		for (int i = 0; out.count < size; i++) {
+			writeObjectClass("Class" + i, 3, 0, out);
+		}
+
+		out.write("\t\t</objectClass>\n");
+		out.write("\t</objects>\n");
+		out.write("</objectModel>\n");
+	}
+
+	private static void writeObjectClass(String name, int indent, int level, CountingWriter out) throws IOException {
+
+		String tabs = "\t\t\t\t\t\t\t\t".substring(0, indent);
+
+		out.write(tabs + "<objectClass>\n");
+		out.write(tabs + "\t<name>" + name + "</name>\n");
+		out.write(tabs + "\t<sharing>PublishSubscribe</sharing>\n");
+		out.write(tabs + "\t<semantics>Generated class " + name + "</semantics>\n");
+
+		for (int i = 0; i < 2; i++) {
+			out.write(tabs + "\t<attribute>\n");
+			out.write(tabs + "\t\t<name>" + name + "Attribute" + i + "</name>\n");
+			out.write(tabs + "\t\t<dataType>HLAinteger32BE</dataType>\n");
+			out.write(tabs + "\t\t<updateType>Conditional</updateType>\n");
+			out.write(tabs + "\t\t<updateCondition>On change</updateCondition>\n");
+			out.write(tabs + "\t\t<ownership>DivestAcquire</ownership>\n");
+			out.write(tabs + "\t\t<sharing>PublishSubscribe</sharing>\n");
+			out.write(tabs + "\t\t<transportation>HLAreliable</transportation>\n");
+			out.write(tabs + "\t\t<order>TimeStamp</order>\n");
+			out.write(tabs + "\t</attribute>\n");
+		}
+
+		if (level < 2) {
+			for (int i = 0; i < SUBCLASSES; i++) {
+				writeObjectClass(name + "_" + i, indent + 1, level + 1, out);
+			}
+		}
+		out.write(tabs + "</objectClass>\n");
+	}
+
+	// Counts the characters written, which are all ASCII and so one byte each
+	private static final class CountingWriter {
+
+		private final Writer out;
+		private long count;
+
+		private CountingWriter(Writer out) {
+			this.out = out;
+		}
+
+		private void write(String text) throws IOException {
+			out.write(text);
+			count += text.length();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse a document and build the index with each loader: dom
+ * parses into a DOM tree and indexes it with createTreeNode(), stax and
+ * parallel build the index from the event stream on one or all processors,
+ * and mmap scans the mapped file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+	// A DOM tree takes roughly this many times the size of the document
+	private static final int DOM_HEAP_FACTOR = 10;
+
+	@Param({ BenchmarkDocuments.WIDE, BenchmarkDocuments.DEEP, BenchmarkDocuments.REPETITIVE })
+	public String shape;
+
+	@Param({ "1", "64", "1024" })
+	public int sizeMb;
+
+	@Param({ "dom", "stax", "parallel", "mmap" })
+	public String loader;
+
+	private File file;
+
+	@Setup
+	public void generate() throws Exception {
+
+		file = BenchmarkDocuments.get(shape, sizeMb);
+
+		// Fails this combination only, the others still run
+		if (loader.equals("dom") && file.length() * DOM_HEAP_FACTOR > Runtime.getRuntime().maxMemory()) {
+			throw new IllegalStateException(file.getName() + " is too large for the dom loader in this heap");
+		}
+	}
+
+	@Benchmark
+	public XmlIndex load() throws Exception {
+
+		if (loader.equals("mmap")) {
+			XmlIndex index = MappedXmlIndex.open(file);
+			XmlTreeViewer.loadIndex(file, loader, 1, index, LoadMonitor.NONE);
+			return index;
+		}
+
+		XmlIndex index = new ParsedXmlIndex();
+		if (loader.equals("parallel")) {
+			// At least two threads, so the parallel loader runs on one processor too
+			int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			XmlTreeViewer.loadIndex(file, "stax", threads, index, LoadMonitor.NONE);
+		} else {
+			XmlTreeViewer.loadIndex(file, loader, 1, index, LoadMonitor.NONE);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+
+/**
+ * A generated document loaded into an index once per trial, for the
+ * benchmarks of what the viewer does with a loaded document.
+ */
+@State(Scope.Benchmark)
+public class LoadedDocument {
+
+	@Param({ BenchmarkDocuments.WIDE, BenchmarkDocuments.DEEP, BenchmarkDocuments.REPETITIVE })
+	public String shape;
+
+	@Param({ "1", "64", "1024" })
+	public int sizeMb;
+
+	XmlIndex index;
+	LabelIndex labelIndex;
+	TagIndex tagIndex;
+
+	@Setup
+	public void load() throws Exception {
+
+		File file = BenchmarkDocuments.get(shape, sizeMb);
+		index = new ParsedXmlIndex();
+		XmlTreeViewer.loadIndex(file, "stax", 1, index, LoadMonitor.NONE);
+
+		labelIndex = new LabelIndex(index);
+		tagIndex = new TagIndex(index);
+		labelIndex.update();
+		tagIndex.update();
+	}
+}
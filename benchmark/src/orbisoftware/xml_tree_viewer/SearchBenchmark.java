@@ -0,0 +1,98 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the scan behind the Search button in each search mode, as the
+ * SearchWorker does it: matches from the label or tag index put in post
+ * order, or every element checked in post order. Building the label index,
+ * which the first search after loading waits for, is measured separately.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Query {
+
+		@Param({ "text", "terms", "regex", "xpath" })
+		public String mode;
+	}
+
+	@Benchmark
+	public int search(LoadedDocument document, Query query) {
+
+		ElementQuery elementQuery = createQuery(document, query.mode);
+		IntList matches = new IntList();
+
+		synchronized (document.index) {
+			IntList found = elementQuery.prepare();
+			if (found != null) {
+				document.index.sortByPostOrder(found, matches);
+			} else {
+				document.index.postOrder(id -> {
+					if (elementQuery.matches(id)) {
+						matches.add(id);
+					}
+				});
+			}
+		}
+		return matches.size();
+	}
+
+	@Benchmark
+	public LabelIndex indexLabels(LoadedDocument document) {
+
+		LabelIndex labelIndex = new LabelIndex(document.index);
+		synchronized (document.index) {
+			labelIndex.update();
+		}
+		return labelIndex;
+	}
+
+	// Queries with matches in every shape of document
+	private static ElementQuery createQuery(LoadedDocument document, String mode) {
+
+		switch (mode) {
+		case "terms":
+			return LabelQuery.anyTerm(document.index, document.labelIndex, TermMatcher.split("42 ownership"));
+		case "regex":
+			return LabelQuery.regex(document.index, document.labelIndex, "^name = .*7$");
+		case "xpath":
+			return new PathQuery(document.index, document.tagIndex, "//*[contains(name,'7')]/name");
+		default:
+			return LabelQuery.text(document.index, document.labelIndex, "123");
+		}
+	}
+}
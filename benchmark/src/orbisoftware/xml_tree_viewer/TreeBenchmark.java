@@ -0,0 +1,91 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.SwingUtilities;
+import javax.swing.tree.TreePath;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of the tree operations on a loaded document: the name paths the
+ * selection listener shows, for elements spread over the document in a
+ * fresh tree, and Expand All from the root with the default limits. The
+ * tree is used on the event dispatch thread as in the viewer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TreeBenchmark {
+
+	// Elements whose name path is shown per invocation
+	private static final int SELECTIONS = 1000;
+
+	@State(Scope.Thread)
+	public static class CollapsedTree {
+
+		XmlTree tree;
+
+		@Setup(Level.Invocation)
+		public void create(LoadedDocument document) throws Exception {
+			SwingUtilities.invokeAndWait(() -> tree = new XmlTree(new XmlTreeModel(document.index)));
+		}
+	}
+
+	@Benchmark
+	public int namePaths(LoadedDocument document) {
+
+		XmlTreeModel model = new XmlTreeModel(document.index);
+		int size = document.index.size();
+		int length = 0;
+
+		for (int i = 0; i < SELECTIONS; i++) {
+			int id = (int) ((long) i * size / SELECTIONS);
+			TreePath path = model.getPath(id);
+			length += ((XmlTreeNode) path.getLastPathComponent()).getNamePath().length();
+		}
+		return length;
+	}
+
+	@Benchmark
+	public int expandAll(CollapsedTree collapsed) throws Exception {
+
+		XmlTree tree = collapsed.tree;
+		CompletableFuture<Integer> rows = new CompletableFuture<>();
+
+		// Ends once the background walk is done and every node is expanded
+		SwingUtilities.invokeAndWait(() -> tree.expandSubtree(new TreePath(tree.getModel().getRoot()),
+				complete -> rows.complete(tree.getRowCount())));
+		return rows.get();
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Search without a display, for scripts. Prints the label or the name path
+ * of each matching element, or only the number of matches, in the order
+ * the viewer lists them.
+ *
+ * Each file is split at the children of its root with the pre-scan of the
+ * parallel loader, and runs of children are parsed one at a time into a
+ * small index that the query is run on, so memory follows the size of a
+ * run rather than of the document. Compressed documents, which cannot be
+ * mapped, and documents the pre-scan cannot split are parsed whole, and so
+ * are documents searched with a path query that looks at the children of
+ * the root together, as each run only has some of them. Several files are
+ * searched at once, each printing its results in order a run at a time.
+ */
+public class BatchSearch {
+
+	// Bytes of root children parsed into one index
+	private static final long CHUNK_SIZE = 8 << 20;
+
+	public interface QueryFactory {
+
+		// Query on the index of one run of children, throws
+		// IllegalArgumentException for an invalid query
+		ElementQuery create(XmlIndex index, TagIndex tagIndex);
+	}
+
+	private final QueryFactory queryFactory;
+	private final boolean printPaths;
+	private final boolean countOnly;
+	private final PrintStream out;
+	private boolean prefixFiles;
+
+	// Without a query factory every element matches, or with printPaths
+	// every element that has a name
+	public BatchSearch(QueryFactory queryFactory, boolean printPaths, boolean countOnly, PrintStream out) {
+
+		this.queryFactory = queryFactory;
+		this.printPaths = printPaths;
+		this.countOnly = countOnly;
+		this.out = out;
+	}
+
+	// Searches the files on up to a number of threads. Results are prefixed
+	// with the file name when there are several files. Returns false if a
+	// file could not be searched.
+	public boolean run(List<File> files, int threads) throws InterruptedException {
+
+		prefixFiles = files.size() > 1;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		boolean success = true;
+
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			for (File file : files) {
+				results.add(pool.submit(() -> searchFile(file)));
+			}
+
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					long count = results.get(i).get();
+					if (countOnly) {
+						print(files.get(i), count + System.lineSeparator());
+					}
+				} catch (Exception e) {
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					System.err.println("Could not search " + files.get(i) + ": " + cause.getMessage());
+					success = false;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		out.flush();
+		return success;
+	}
+
+	// Returns the number of matches
+	private long searchFile(File file) throws Exception {
+
+		MappedXmlFile mapped;
+		ParallelXmlLoader.Layout layout;
+
+		try {
+			mapped = MappedXmlFile.open(file);
+			layout = ParallelXmlLoader.prescan(mapped, LoadMonitor.NONE);
+		} catch (IOException e) {
+			mapped = null;
+			layout = null;
+		}
+
+		if (layout == null || layout.childCount == 0 || needsWholeDocument(layout.rootName)) {
+			ParsedXmlIndex index = new ParsedXmlIndex();
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+				phase.setDetail("stax");
+				StaxTreeLoader.load(file, index, LoadMonitor.NONE);
+			}
+			return searchIndex(file, index, index.elementName(0), true);
+		}
+
+		byte[] prefix = ParallelXmlLoader.bytes(mapped, layout.rootStart, layout.rootTagEnd);
+		byte[] suffix = ("</" + layout.rootName + ">").getBytes(mapped.charset());
+		String rootName = printPaths ? rootElementName(mapped, layout, prefix, suffix) : null;
+
+		long total = layout.childEnd[layout.childCount - 1] - layout.childStart[0];
+		List<long[]> chunks = ParallelXmlLoader.split(layout, (int) Math.max(1, total / CHUNK_SIZE));
+		long count = 0;
+
+		for (int i = 0; i < chunks.size(); i++) {
+			ParsedXmlIndex index;
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+				phase.setDetail("stax, part " + (i + 1) + " of " + chunks.size());
+				index = ParallelXmlLoader.parseChunk(mapped, chunks.get(i), prefix, suffix, LoadMonitor.NONE);
+			}
+
+			// Every run has a copy of the root, it is reported with the last
+			count += searchIndex(file, index, rootName, i == chunks.size() - 1);
+		}
+		return count;
+	}
+
+	// Whether the query cannot be run on each run of root children alone
+	private boolean needsWholeDocument(String rootName) {
+
+		if (queryFactory == null) {
+			return false;
+		}
+
+		ParsedXmlIndex empty = new ParsedXmlIndex();
+		ElementQuery query = queryFactory.create(empty, new TagIndex(empty));
+		return query instanceof PathQuery && ((PathQuery) query).needsAllRootChildren(rootName);
+	}
+
+	// Prints the matches in one index, in post order. The root has the name
+	// given, as its name child may be in another run.
+	private long searchIndex(File file, XmlIndex index, String rootName, boolean includeRoot) {
+
+		IntList matches = new IntList();
+		try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.SEARCH)) {
+			findMatches(index, matches);
+			phase.setDetail(String.format("batch, %,d matches", matches.size()));
+		}
+
+		StringBuilder lines = new StringBuilder();
+		StringBuilder label = new StringBuilder();
+		long count = 0;
+
+		for (int i = 0; i < matches.size(); i++) {
+			int id = matches.get(i);
+			if (id == 0 && !includeRoot) {
+				continue;
+			}
+			count++;
+
+			if (countOnly) {
+				continue;
+			}
+			if (prefixFiles) {
+				lines.append(file.getPath()).append(':');
+			}
+			if (printPaths) {
+				lines.append(namePath(index, id, rootName));
+			} else {
+				label.setLength(0);
+				index.appendLabel(id, label);
+				lines.append(label);
+			}
+			lines.append(System.lineSeparator());
+		}
+
+		if (lines.length() > 0) {
+			synchronized (out) {
+				out.append(lines);
+			}
+		}
+		return count;
+	}
+
+	// Elements of the index that match, in post order
+	private void findMatches(XmlIndex index, IntList matches) {
+
+		ElementQuery query = queryFactory != null ? queryFactory.create(index, new TagIndex(index)) : null;
+
+		// Label queries would build a trigram index of the run, checking each
+		// label is cheaper
+		IntList found = query instanceof PathQuery ? query.prepare() : null;
+		if (found != null) {
+			index.sortByPostOrder(found, matches);
+		} else {
+			index.postOrder(id -> {
+				if (query != null ? query.matches(id) : !printPaths || index.elementName(id) != null) {
+					matches.add(id);
+				}
+			});
+		}
+	}
+
+	private void print(File file, String line) {
+
+		synchronized (out) {
+			out.print(prefixFiles ? file.getPath() + ":" + line : line);
+		}
+	}
+
+	// Names of an element and its ancestors from the root down, joined with
+	// dots, as the viewer shows them for the selected node
+	private static String namePath(XmlIndex index, int id, String rootName) {
+
+		List<String> names = new ArrayList<>();
+		for (int ancestor = id; ancestor >= 0; ancestor = index.parent(ancestor)) {
+			String name = ancestor == 0 ? rootName : index.elementName(ancestor);
+			if (name != null) {
+				names.add(name);
+			}
+		}
+
+		StringBuilder path = new StringBuilder();
+		for (int i = names.size() - 1; i >= 0; i--) {
+			if (path.length() > 0) {
+				path.append('.');
+			}
+			path.append(names.get(i));
+		}
+		return path.toString();
+	}
+
+	// Text of the first "name" child of the root that has text, found by
+	// parsing only the children that start with a name tag
+	private static String rootElementName(MappedXmlFile file, ParallelXmlLoader.Layout layout, byte[] prefix,
+			byte[] suffix) throws Exception {
+
+		for (int i = 0; i < layout.childCount; i++) {
+			long start = layout.childStart[i];
+			if (file.startsWith(start, "<name") && MappedXmlFile.isNameEnd(file.byteAt(start + 5))) {
+				long[] chunk = { start, layout.childEnd[i] };
+				XmlIndex part = ParallelXmlLoader.parseChunk(file, chunk, prefix, suffix, LoadMonitor.NONE);
+				String text = part.leafText(1);
+				if (text != null) {
+					return text;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompressed content of a gzip, xz or zstd compressed document, which is
+ * recognized by its magic bytes. Decompression runs on a thread of its own
+ * that hands blocks of the document to the parser through a bounded queue,
+ * so decompressing and parsing keep two cores busy.
+ *
+ * gzip is decoded by the JDK. The JDK has no xz or zstd decoder, so those
+ * are decompressed by the xz and zstd commands, which must be installed;
+ * a second thread feeds them the compressed bytes.
+ */
+public class DecompressingInputStream extends InputStream {
+
+	public enum Format {
+
+		GZIP(null, 0x1F, 0x8B),
+		XZ("xz", 0xFD, '7', 'z', 'X', 'Z', 0x00),
+		ZSTD("zstd", 0x28, 0xB5, 0x2F, 0xFD);
+
+		// Command that decompresses the format, null when the JDK does
+		private final String command;
+		private final int[] magic;
+
+		Format(String command, int... magic) {
+			this.command = command;
+			this.magic = magic;
+		}
+
+		private boolean matches(byte[] header, int length) {
+
+			if (length < magic.length) {
+				return false;
+			}
+			for (int i = 0; i < magic.length; i++) {
+				if ((header[i] & 0xFF) != magic[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// Bytes read to recognize a format
+	public static final int HEADER_LENGTH = 6;
+
+	// Decompressed blocks handed to the parser, and how many may wait
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int PENDING_BLOCKS = 16;
+
+	// Queued after the last block
+	private static final byte[] END = new byte[0];
+
+	private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(PENDING_BLOCKS);
+	private final InputStream source;
+	private final Format format;
+	private final Thread decompressor;
+	private Process process;
+
+	// Set by the decompressor or feeder before END is queued
+	private volatile Throwable failure;
+
+	private byte[] block;
+	private int position;
+	private volatile boolean closed;
+
+	private DecompressingInputStream(InputStream source, Format format) {
+
+		this.source = source;
+		this.format = format;
+		decompressor = new Thread(this::decompress, format.name().toLowerCase() + " decompressor");
+		decompressor.setDaemon(true);
+	}
+
+	// Format of the header bytes of a file, or null when it is not compressed
+	public static Format detect(byte[] header, int length) {
+
+		for (Format format : Format.values()) {
+			if (format.matches(header, length)) {
+				return format;
+			}
+		}
+		return null;
+	}
+
+	public static Format detect(File file) throws IOException {
+
+		byte[] header = new byte[HEADER_LENGTH];
+		try (InputStream in = new FileInputStream(file)) {
+			return detect(header, in.readNBytes(header, 0, HEADER_LENGTH));
+		}
+	}
+
+	// Whether a file is compressed, false if it cannot be read
+	public static boolean isCompressed(File file) {
+
+		try {
+			return detect(file) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Decompresses a stream when it starts with the magic bytes of a
+	// format, otherwise returns it as it is. The stream must support mark.
+	public static InputStream open(InputStream in) throws IOException {
+
+		byte[] header = new byte[HEADER_LENGTH];
+		in.mark(HEADER_LENGTH);
+		int length = in.readNBytes(header, 0, HEADER_LENGTH);
+		in.reset();
+
+		Format format = detect(header, length);
+		if (format == null) {
+			return in;
+		}
+
+		DecompressingInputStream decompressed = new DecompressingInputStream(in, format);
+		decompressed.start();
+		return decompressed;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if (!nextBlock()) {
+			return -1;
+		}
+		return block[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		if (length == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+
+		int n = Math.min(length, block.length - position);
+		System.arraycopy(block, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return block != null && block != END ? block.length - position : 0;
+	}
+
+	// Stops the decompression, also when the document was not read to its end
+	@Override
+	public void close() throws IOException {
+
+		closed = true;
+		decompressor.interrupt();
+		if (process != null) {
+			process.destroy();
+		}
+		source.close();
+	}
+
+	private void start() throws IOException {
+
+		if (format.command != null) {
+			try {
+				process = new ProcessBuilder(format.command, "-dc").start();
+			} catch (IOException e) {
+				throw new IOException("The " + format.command + " command is needed to read " + format.command
+						+ " compressed files", e);
+			}
+			Thread feeder = new Thread(this::feed, format.command + " feeder");
+			feeder.setDaemon(true);
+			feeder.start();
+		}
+		decompressor.start();
+	}
+
+	// Makes a block with unread bytes current, returns false at the end
+	private boolean nextBlock() throws IOException {
+
+		while (block == null || (block != END && position == block.length)) {
+			try {
+				block = blocks.take();
+				position = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + format.name().toLowerCase() + " input", e);
+			}
+		}
+
+		if (block != END) {
+			return true;
+		}
+
+		Throwable error = failure;
+		if (error instanceof IOException) {
+			throw new IOException(error.getMessage(), error);
+		} else if (error instanceof RuntimeException) {
+			// A cancelled load stops with a CancellationException
+			throw (RuntimeException) error;
+		} else if (error != null) {
+			throw new IOException(error);
+		}
+		return false;
+	}
+
+	// Runs on the decompressor thread
+	private void decompress() {
+
+		try {
+			InputStream decoded = format.command != null ? process.getInputStream()
+					: new GZIPInputStream(source, BLOCK_SIZE);
+
+			while (true) {
+				byte[] buffer = new byte[BLOCK_SIZE];
+				int length = decoded.readNBytes(buffer, 0, BLOCK_SIZE);
+				if (length == 0) {
+					break;
+				}
+				blocks.put(length < BLOCK_SIZE ? Arrays.copyOf(buffer, length) : buffer);
+			}
+
+			if (format.command != null) {
+				checkExitStatus();
+			}
+		} catch (InterruptedException e) {
+			// Closed
+			return;
+		} catch (Throwable e) {
+			// The first error is reported, a failing feeder ends the output
+			if (!closed && failure == null) {
+				failure = e;
+			}
+		}
+
+		try {
+			blocks.put(END);
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	// Runs on the feeder thread, passes the compressed bytes to the command
+	private void feed() {
+
+		try (OutputStream in = process.getOutputStream()) {
+			source.transferTo(in);
+		} catch (Throwable e) {
+			// The command failed, or the load was cancelled
+			if (!closed && failure == null) {
+				failure = e;
+			}
+			process.destroy();
+		}
+	}
+
+	private void checkExitStatus() throws IOException, InterruptedException {
+
+		int status = process.waitFor();
+		if (status != 0 && failure == null) {
+			ByteArrayOutputStream message = new ByteArrayOutputStream();
+			process.getErrorStream().transferTo(message);
+			throw new IOException(format.command + " failed: " + message.toString().trim());
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Matches the elements of a run of child subtrees of an XmlIndex against a
+ * newly parsed version of them, so that the index can be updated with
+ * XmlIndex.replaceSubtrees() and the tree keeps the nodes of the elements
+ * that are still there. Each subtree is summarized by a hash of its labels
+ * and structure; equal subtrees are matched whole, and elements with the
+ * same tag at the same place are matched and their children compared in
+ * turn. The rest counts as removed or inserted.
+ *
+ * Afterwards newId() gives the id each element of the old index has once
+ * the part replaces the run.
+ */
+public class DocumentDiff {
+
+	private final int parentId;
+	private final int from;
+	private final int to;
+	private final int offset;
+	private final int delta;
+
+	// New id of each old element of the run, or -1 if it was removed
+	private final int[] newIds;
+
+	// Matched elements whose children or label may differ
+	private final BitSet changed = new BitSet();
+	private final BitSet relabeled = new BitSet();
+	private boolean parentRelabeled;
+	private int matchedCount;
+
+	// Compares the child subtrees of parentId between the ids from and to
+	// with the children of the root of part. Called with the index locked.
+	public DocumentDiff(XmlIndex index, int parentId, int from, int to, XmlIndex part) {
+
+		this.parentId = parentId;
+		this.from = from;
+		this.to = to;
+		this.offset = from - 1;
+		this.delta = part.size() - 1 - (to - from);
+		this.newIds = new int[to - from];
+		Arrays.fill(newIds, -1);
+
+		long[] oldHashes = subtreeHashes(index, from, to);
+		long[] partHashes = subtreeHashes(part, 1, part.size());
+
+		Deque<int[][]> pending = new ArrayDeque<>();
+		pending.push(new int[][] { runChildren(index, from, to), children(part, 0) });
+
+		while (!pending.isEmpty()) {
+			int[][] lists = pending.pop();
+			int[] oldChildren = lists[0];
+			int[] newChildren = lists[1];
+
+			// Equal subtrees at both ends
+			int start = 0;
+			while (start < oldChildren.length && start < newChildren.length
+					&& oldHashes[oldChildren[start] - from] == partHashes[newChildren[start] - 1]) {
+				matchSubtree(index, oldChildren[start], newChildren[start]);
+				start++;
+			}
+			int oldEnd = oldChildren.length;
+			int newEnd = newChildren.length;
+			while (oldEnd > start && newEnd > start
+					&& oldHashes[oldChildren[oldEnd - 1] - from] == partHashes[newChildren[newEnd - 1] - 1]) {
+				matchSubtree(index, oldChildren[--oldEnd], newChildren[--newEnd]);
+			}
+
+			// In between, elements with the same tag are taken for edited
+			// versions of each other, skipping over the longer side
+			int i = start;
+			int j = start;
+			while (i < oldEnd && j < newEnd) {
+				int oldId = oldChildren[i];
+				int newId = newChildren[j];
+
+				if (index.tagName(oldId).equals(part.tagName(newId))) {
+					newIds[oldId - from] = newId;
+					changed.set(oldId - from);
+					matchedCount++;
+					if (labelHash(index, oldId) != labelHash(part, newId)) {
+						relabeled.set(oldId - from);
+					}
+					pending.push(new int[][] { children(index, oldId), children(part, newId) });
+					i++;
+					j++;
+				} else if (oldEnd - i > newEnd - j) {
+					i++;
+				} else if (oldEnd - i < newEnd - j) {
+					j++;
+				} else {
+					i++;
+					j++;
+				}
+			}
+		}
+
+		if (labelHash(index, parentId) != labelHash(part, 0)) {
+			parentRelabeled = true;
+		}
+	}
+
+	// Id an element of the old index has after the replacement, or -1 if
+	// it was removed
+	public int newId(int oldId) {
+
+		if (oldId < from) {
+			return oldId;
+		}
+		if (oldId >= to) {
+			return oldId + delta;
+		}
+
+		int newId = newIds[oldId - from];
+		return newId >= 0 ? newId + offset : -1;
+	}
+
+	// Whether the children of a kept element may have changed
+	public boolean isChanged(int oldId) {
+
+		if (oldId < from || oldId >= to) {
+			return oldId == parentId;
+		}
+		return changed.get(oldId - from);
+	}
+
+	// Whether the label of a kept element changed
+	public boolean isRelabeled(int oldId) {
+
+		if (oldId < from || oldId >= to) {
+			return oldId == parentId && parentRelabeled;
+		}
+		return relabeled.get(oldId - from);
+	}
+
+	// Whether the tag or attributes of the element the part replaces the
+	// children of changed
+	public boolean isParentRenamed() {
+		return parentRelabeled;
+	}
+
+	public int removedCount() {
+		return newIds.length - matchedCount;
+	}
+
+	public int insertedCount() {
+		return newIds.length + delta - matchedCount;
+	}
+
+	// Maps a whole subtree to an equal one, element by element
+	private void matchSubtree(XmlIndex index, int oldId, int newId) {
+
+		int count = index.lastDescendant(oldId) - oldId + 1;
+		for (int k = 0; k < count; k++) {
+			newIds[oldId - from + k] = newId + k;
+		}
+		matchedCount += count;
+	}
+
+	// Hash of the labels and shape of the subtree of each element between
+	// two ids. Descendants have higher ids, so a reverse pass sees every
+	// child before its parent.
+	private static long[] subtreeHashes(XmlIndex index, int from, int to) {
+
+		long[] hashes = new long[to - from];
+
+		for (int id = to - 1; id >= from; id--) {
+			long hash = labelHash(index, id);
+			for (int child = index.firstChild(id); child >= 0; child = index.nextSibling(child)) {
+				hash = mix(hash * 31 + hashes[child - from]);
+			}
+			hashes[id - from] = mix(hash + index.childCount(id));
+		}
+		return hashes;
+	}
+
+	// Attributes count as part of the label, an element whose attributes
+	// changed is replaced
+	private static long labelHash(XmlIndex index, int id) {
+
+		long hash = stringHash(index.tagName(id));
+		for (int n = 0; n < index.attributeCount(id); n++) {
+			hash = mix(hash * 31 + stringHash(index.attributeName(id, n)));
+			hash = mix(hash * 31 + stringHash(index.attributeValue(id, n)));
+		}
+		String text = index.leafText(id);
+		return mix(hash * 31 + (text != null ? stringHash(text) : 0));
+	}
+
+	private static long stringHash(String value) {
+
+		long hash = 1;
+		for (int i = 0; i < value.length(); i++) {
+			hash = hash * 0x100000001B3L + value.charAt(i);
+		}
+		return mix(hash + value.length());
+	}
+
+	// Final step of MurmurHash3, spreads every input bit over the result
+	private static long mix(long hash) {
+
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static int[] children(XmlIndex index, int id) {
+
+		int[] children = new int[index.childCount(id)];
+		int child = index.firstChild(id);
+		for (int i = 0; i < children.length; i++) {
+			children[i] = child;
+			child = index.nextSibling(child);
+		}
+		return children;
+	}
+
+	// The subtrees that make up a run of ids
+	private static int[] runChildren(XmlIndex index, int from, int to) {
+
+		IntList children = new IntList();
+		for (int id = from; id < to; id = index.lastDescendant(id) + 1) {
+			children.add(id);
+		}
+		return children.toArray();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.SwingUtilities;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs stalls of the event dispatch thread. A watchdog thread keeps posting
+ * an empty task to the EDT; when one has not run within the threshold, the
+ * current stack of the EDT is printed, and the length of the stall once the
+ * task runs. Tasks are posted four times per threshold, so stalls a quarter
+ * longer than the threshold are always caught.
+ *
+ * Only started when a threshold is given with --stall-ms.
+ */
+public class EdtWatchdog implements Runnable {
+
+	private final long thresholdMillis;
+
+	// Set by the posted tasks, the EDT is replaced after an uncaught
+	// exception
+	private volatile Thread dispatchThread;
+
+	public EdtWatchdog(long thresholdMillis) {
+		this.thresholdMillis = thresholdMillis;
+	}
+
+	public void start() {
+
+		Thread thread = new Thread(this, "EDT watchdog");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			while (true) {
+				CountDownLatch ran = new CountDownLatch(1);
+				long postTime = System.nanoTime();
+				SwingUtilities.invokeLater(() -> {
+					dispatchThread = Thread.currentThread();
+					ran.countDown();
+				});
+
+				if (!ran.await(thresholdMillis, TimeUnit.MILLISECONDS)) {
+					reportStall();
+					ran.await();
+					System.err.printf("EDT stall ended after %d ms%n", (System.nanoTime() - postTime) / 1000000);
+				}
+				Thread.sleep(Math.max(1, thresholdMillis / 4));
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	private void reportStall() {
+
+		Thread thread = dispatchThread;
+		Throwable stall = new Throwable("EDT stalled for over " + thresholdMillis + " ms");
+		stall.setStackTrace(thread != null ? thread.getStackTrace() : new StackTraceElement[0]);
+		stall.printStackTrace();
+	}
+}
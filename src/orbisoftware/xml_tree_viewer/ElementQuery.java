@@ -0,0 +1,31 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+/**
+ * A search over the elements of an index, run by a SearchWorker. Both
+ * methods are called with the index locked.
+ */
+public interface ElementQuery {
+
+	// Returns the matching elements in any order when they can be found
+	// without visiting every element, or null to have matches() asked for
+	// each element instead
+	IntList prepare();
+
+	boolean matches(int id);
+}
@@ -0,0 +1,261 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.tree.TreePath;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Expands a subtree for XmlTree.expandSubtree() without holding up the
+ * EDT. The elements to expand are found level by level in the index on a
+ * background thread, holding the index lock for one batch at a time, and
+ * passed to the EDT in batches. There their nodes are created and marked
+ * expanded in slices of a few milliseconds, so that input and painting are
+ * handled in between. The tree UI is told of the expanded nodes once the
+ * marked ones have doubled since it was last told, and at the end or when
+ * the expansion is cancelled.
+ */
+class ExpandWorker extends SwingWorker<Boolean, int[]> {
+
+	// Elements checked per lock of the index
+	private static final int BATCH_SIZE = 4096;
+
+	// Time the EDT spends on one slice of the batches received
+	private static final long SLICE_NANOS = 10_000_000;
+
+	// Expanded nodes the UI is first told about, the rows soon fill a screen
+	private static final int MIN_SHOWN = 1024;
+
+	private final XmlTree tree;
+	private final XmlIndex index;
+	private final TreePath path;
+	private final int rootId;
+	private final int maxRows;
+	private final int maxDepth;
+	private final Consumer<Boolean> whenDone;
+
+	// Element ids and their parents waiting to be expanded, counted as they
+	// are published and delivered so that the end is known
+	private volatile int published;
+	private int delivered;
+	private final IntList pending = new IntList();
+	private int applied;
+	private boolean applyScheduled;
+
+	// Path of each expanded element, the parents of the next ones
+	private final Map<Integer, TreePath> paths = new HashMap<>();
+	private int expandedCount;
+	private int shownCount;
+	private boolean finished;
+
+	ExpandWorker(XmlTree tree, TreePath path, int maxRows, int maxDepth, Consumer<Boolean> whenDone) {
+
+		this.tree = tree;
+		this.index = ((XmlTreeModel) tree.getModel()).getIndex();
+		this.path = path;
+		this.rootId = ((XmlTreeNode) path.getLastPathComponent()).getId();
+		this.maxRows = maxRows;
+		this.maxDepth = maxDepth;
+		this.whenDone = whenDone;
+	}
+
+	// Returns false if the row limit stopped the expansion
+	@Override
+	protected Boolean doInBackground() {
+
+		IntList level = new IntList();
+		level.add(rootId);
+		int rows = 0;
+
+		// Parents come before their children, so each is expanded under an
+		// already expanded parent. The node itself is always expanded, as a
+		// click on it would.
+		for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+			IntList nextLevel = new IntList();
+
+			for (int start = 0; start < level.size(); start += BATCH_SIZE) {
+				if (isCancelled()) {
+					return false;
+				}
+
+				int end = Math.min(level.size(), start + BATCH_SIZE);
+				IntList batch = new IntList();
+
+				synchronized (index) {
+					for (int i = start; i < end; i++) {
+						int id = level.get(i);
+						int count = index.childCount(id);
+
+						if (count == 0) {
+							continue;
+						}
+						if (depth > 0 && rows + count > maxRows) {
+							publishBatch(batch);
+							return false;
+						}
+
+						rows += count;
+						batch.add(id);
+						batch.add(index.parent(id));
+						for (int child = index.firstChild(id); child >= 0; child = index.nextSibling(child)) {
+							nextLevel.add(child);
+						}
+					}
+				}
+				publishBatch(batch);
+			}
+			level = nextLevel;
+		}
+		return true;
+	}
+
+	private void publishBatch(IntList batch) {
+
+		if (!batch.isEmpty()) {
+			published += batch.size();
+			publish(batch.toArray());
+		}
+	}
+
+	@Override
+	protected void process(List<int[]> batches) {
+
+		if (isCancelled()) {
+			return;
+		}
+
+		for (int[] batch : batches) {
+			for (int value : batch) {
+				pending.add(value);
+			}
+			delivered += batch.length;
+		}
+		scheduleApply();
+	}
+
+	private void scheduleApply() {
+
+		if (!applyScheduled) {
+			applyScheduled = true;
+			SwingUtilities.invokeLater(this::applyPending);
+		}
+	}
+
+	// Expands the nodes of pending elements for one slice of time, then
+	// leaves the rest for later
+	private void applyPending() {
+
+		applyScheduled = false;
+		if (finished) {
+			return;
+		}
+
+		long sliceEnd = System.nanoTime() + SLICE_NANOS;
+		while (applied < pending.size() && System.nanoTime() < sliceEnd) {
+			for (int n = 0; n < 64 && applied < pending.size(); n++, applied += 2) {
+				expand(pending.get(applied), pending.get(applied + 1));
+			}
+		}
+
+		// Each event makes the UI go over every expanded node below the
+		// path, so it is sent when the nodes marked since the last one at
+		// least match those it already knows, which at most doubles the work
+		if (expandedCount - shownCount >= Math.max(MIN_SHOWN, shownCount)) {
+			tree.expansionApplied(path);
+			shownCount = expandedCount;
+		}
+
+		if (applied < pending.size()) {
+			scheduleApply();
+		} else {
+			pending.clear();
+			applied = 0;
+			finishIfComplete();
+		}
+	}
+
+	private void expand(int id, int parentId) {
+
+		TreePath parentPath = paths.get(parentId);
+		TreePath expanded;
+
+		if (id == rootId) {
+			expanded = path;
+		} else if (parentPath == null) {
+			// Below an element that was not shown
+			return;
+		} else {
+			XmlTreeNode node = ((XmlTreeNode) parentPath.getLastPathComponent()).childWithId(id, true);
+			if (node == null) {
+				// Added by the loader since the parent was shown
+				return;
+			}
+			expanded = parentPath.pathByAddingChild(node);
+		}
+
+		tree.setExpandedQuietly(expanded);
+		paths.put(id, expanded);
+		expandedCount++;
+	}
+
+	@Override
+	protected void done() {
+
+		if (isCancelled()) {
+			finish();
+			whenDone.accept(null);
+			return;
+		}
+		finishIfComplete();
+	}
+
+	private void finishIfComplete() {
+
+		if (isDone() && delivered == published && applied == pending.size() && !finished) {
+			finish();
+			try {
+				whenDone.accept(get());
+			} catch (CancellationException | InterruptedException e) {
+				// Cancelled after the last batch was applied
+				whenDone.accept(null);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				whenDone.accept(null);
+				JOptionPane.showMessageDialog(null, "Expand failed:\n" + cause.getMessage());
+			}
+		}
+	}
+
+	// Tells the tree UI about the expanded nodes
+	private void finish() {
+
+		if (!finished) {
+			finished = true;
+			tree.expansionApplied(path);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.SwingUtilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a loaded document and reloads the parts that changed when it is
+ * saved. The byte range of each child of the root is located with the
+ * pre-scan of the parallel loader and compared by checksum with the
+ * previous version; only the run between the unchanged children at both
+ * ends is parsed again, and a DocumentDiff of that run against the index
+ * decides which nodes the tree keeps.
+ *
+ * Documents the pre-scan cannot split (with a DOCTYPE or an empty root)
+ * are not reloaded.
+ */
+public class FileWatcher implements Runnable {
+
+	// The file must keep its size and time for this long before it is read,
+	// editors often save in several writes
+	private static final long SETTLE_MS = 300;
+
+	public interface Listener {
+
+		// The index is about to change, called on the EDT
+		void reloading();
+
+		// The index and tree were updated, called on the EDT
+		void reloaded(DocumentDiff diff, long elapsedNanos);
+
+		// The changed file could not be read, called on the EDT
+		void reloadFailed(String message);
+	}
+
+	private final File xmlFile;
+	private final XmlTreeModel treeModel;
+	private final ParsedXmlIndex index;
+	private final LabelIndex labelIndex;
+	private final TagIndex tagIndex;
+	private final Listener listener;
+
+	// The file as it was loaded into the index
+	private final long loadedSize;
+	private final long loadedModified;
+
+	// Checksums of the root start tag and of each child of the root in the
+	// version of the file the index holds, null when not known
+	private long rootTagHash;
+	private long[] childHashes;
+
+	public FileWatcher(File xmlFile, XmlTreeModel treeModel, LabelIndex labelIndex, TagIndex tagIndex,
+			long loadedSize, long loadedModified, Listener listener) {
+
+		this.xmlFile = xmlFile.getAbsoluteFile();
+		this.treeModel = treeModel;
+		this.index = (ParsedXmlIndex) treeModel.getIndex();
+		this.labelIndex = labelIndex;
+		this.tagIndex = tagIndex;
+		this.loadedSize = loadedSize;
+		this.loadedModified = loadedModified;
+		this.listener = listener;
+	}
+
+	public void start() {
+
+		Thread thread = new Thread(this, "Watching " + xmlFile.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+
+		Path name = xmlFile.toPath().getFileName();
+
+		try (WatchService service = FileSystems.getDefault().newWatchService()) {
+			xmlFile.toPath().getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+
+			// The file may have changed while it was loading
+			boolean changed = xmlFile.length() != loadedSize || xmlFile.lastModified() != loadedModified;
+			if (!changed) {
+				readChecksums();
+			}
+
+			while (true) {
+				if (!changed) {
+					changed = concernsFile(service.take(), name);
+					continue;
+				}
+				awaitSettled(service, name);
+				reload();
+				changed = false;
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (IOException e) {
+			reportFailure("Could not watch " + xmlFile + ": " + e.getMessage());
+		}
+	}
+
+	// Checksums of the file as loaded, so that the first change only parses
+	// what it touched
+	private void readChecksums() {
+
+		try {
+			MappedXmlFile file = MappedXmlFile.open(xmlFile);
+			ParallelXmlLoader.Layout layout = ParallelXmlLoader.prescan(file, LoadMonitor.NONE);
+
+			synchronized (index) {
+				if (layout == null || layout.childCount != index.childCount(0)) {
+					return;
+				}
+			}
+			rootTagHash = file.checksum(layout.rootStart, layout.rootTagEnd);
+			childHashes = checksums(file, layout);
+		} catch (IOException | InternalError e) {
+			// Everything is compared on the first change
+		}
+	}
+
+	// Waits until the file stops changing
+	private void awaitSettled(WatchService service, Path name) throws InterruptedException {
+
+		while (true) {
+			long size = xmlFile.length();
+			long modified = xmlFile.lastModified();
+			WatchKey key = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+			boolean changed = key != null && concernsFile(key, name);
+
+			if (!changed && xmlFile.isFile() && xmlFile.length() == size && xmlFile.lastModified() == modified) {
+				return;
+			}
+		}
+	}
+
+	private void reload() throws InterruptedException {
+
+		long startTime = System.nanoTime();
+
+		try {
+			MappedXmlFile file = MappedXmlFile.open(xmlFile);
+			ParallelXmlLoader.Layout layout = ParallelXmlLoader.prescan(file, LoadMonitor.NONE);
+			if (layout == null) {
+				childHashes = null;
+				reportFailure(xmlFile.getName() + " changed, but cannot be reloaded in parts (it has a DOCTYPE"
+						+ " or an empty root)");
+				return;
+			}
+
+			long rootHash = file.checksum(layout.rootStart, layout.rootTagEnd);
+			long[] hashes = checksums(file, layout);
+
+			// Children with unchanged bytes at both ends are kept as they are,
+			// a changed root start tag may change how all of them parse
+			int first = 0;
+			int oldEnd = 0;
+			int newEnd = hashes.length;
+			if (childHashes != null && rootHash == rootTagHash) {
+				oldEnd = childHashes.length;
+				while (first < oldEnd && first < newEnd && childHashes[first] == hashes[first]) {
+					first++;
+				}
+				while (oldEnd > first && newEnd > first && childHashes[oldEnd - 1] == hashes[newEnd - 1]) {
+					oldEnd--;
+					newEnd--;
+				}
+				if (first == oldEnd && first == newEnd) {
+					return;
+				}
+			}
+
+			long[] chunk = first < newEnd ? new long[] { layout.childStart[first], layout.childEnd[newEnd - 1] }
+					: new long[] { 0, 0 };
+			byte[] prefix = ParallelXmlLoader.bytes(file, layout.rootStart, layout.rootTagEnd);
+			byte[] suffix = ("</" + layout.rootName + ">").getBytes(file.charset());
+			ParsedXmlIndex part = ParallelXmlLoader.parseChunk(file, chunk, prefix, suffix, LoadMonitor.NONE);
+
+			int[] range;
+			DocumentDiff diff;
+			synchronized (index) {
+				if (childHashes == null || rootHash != rootTagHash) {
+					oldEnd = index.childCount(0);
+				}
+				range = childRange(first, oldEnd);
+				diff = new DocumentDiff(index, 0, range[0], range[1], part);
+			}
+
+			SwingUtilities.invokeAndWait(() -> {
+				listener.reloading();
+				synchronized (index) {
+					int oldSize = index.size();
+					index.replaceSubtrees(0, range[0], range[1], part);
+					if (diff.isParentRenamed()) {
+						index.setTagName(0, part.tagName(0));
+						index.setAttributes(0, part, 0);
+					}
+					int replacedEnd = range[1] + index.size() - oldSize;
+					labelIndex.replaceElements(0, range[0], range[1], replacedEnd);
+					tagIndex.replaceElements(0, range[0], range[1], replacedEnd);
+				}
+				treeModel.elementsReplaced(diff);
+				listener.reloaded(diff, System.nanoTime() - startTime);
+			});
+
+			rootTagHash = rootHash;
+			childHashes = hashes;
+
+			synchronized (index) {
+				labelIndex.update();
+				tagIndex.update();
+			}
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (InvocationTargetException e) {
+			// The index is in an unknown state, stop watching
+			throw new IllegalStateException("Could not update the tree", e.getCause());
+		} catch (InternalError e) {
+			// The mapped file was cut short while it was read, the next change
+			// reloads it
+		} catch (Exception e) {
+			// Usually a document saved halfway through an edit, the index
+			// keeps the previous version until the next change
+			reportFailure("Could not reload " + xmlFile.getName() + ": " + e.getMessage());
+		}
+	}
+
+	// Ids spanned by the subtrees of the children of the root from one
+	// position up to another. Called with the index locked.
+	private int[] childRange(int first, int end) {
+
+		int child = index.firstChild(0);
+		for (int i = 0; i < first; i++) {
+			child = index.nextSibling(child);
+		}
+
+		int from = child >= 0 ? child : index.size();
+		int to = from;
+		for (int i = first; i < end; i++) {
+			to = index.lastDescendant(child) + 1;
+			child = index.nextSibling(child);
+		}
+		return new int[] { from, to };
+	}
+
+	private static long[] checksums(MappedXmlFile file, ParallelXmlLoader.Layout layout) {
+
+		long[] hashes = new long[layout.childCount];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = file.checksum(layout.childStart[i], layout.childEnd[i]);
+		}
+		return hashes;
+	}
+
+	// Whether the events of a key include the watched file. Resets the key.
+	private static boolean concernsFile(WatchKey key, Path name) {
+
+		boolean concerns = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+				concerns = true;
+			}
+		}
+		key.reset();
+		return concerns;
+	}
+
+	private void reportFailure(String message) {
+		SwingUtilities.invokeLater(() -> listener.reloadFailed(message));
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk copy of a loaded document: the element index with its label and
+ * tag indexes, written column by column after a complete load so that the
+ * next time the same file is opened it is read back instead of parsed.
+ *
+ * A snapshot records the path, size, modification time and a checksum of
+ * the content of the XML file, and is only used while all four still
+ * match. Snapshots are kept in a directory under the user's home.
+ */
+public class IndexSnapshot {
+
+	private static final int MAGIC = 0x58545653;
+	private static final int VERSION = 3;
+
+	// Position of the snapshot length in the header, written last so that
+	// an incomplete file is never taken for a snapshot
+	private static final long LENGTH_POSITION = 8;
+
+	private static final File DIRECTORY = new File(System.getProperty("user.home"), ".xml_tree_viewer/snapshots");
+
+	private final XmlIndex index;
+	private final LabelIndex labelIndex;
+	private final TagIndex tagIndex;
+
+	private IndexSnapshot(XmlIndex index, LabelIndex labelIndex, TagIndex tagIndex) {
+		this.index = index;
+		this.labelIndex = labelIndex;
+		this.tagIndex = tagIndex;
+	}
+
+	public XmlIndex getIndex() {
+		return index;
+	}
+
+	public LabelIndex getLabelIndex() {
+		return labelIndex;
+	}
+
+	public TagIndex getTagIndex() {
+		return tagIndex;
+	}
+
+	// Reads the snapshot of a file, or returns null when there is none of
+	// the requested kind or it no longer matches the file
+	public static IndexSnapshot load(File xmlFile, boolean mapped) {
+
+		File snapshotFile = snapshotFile(xmlFile);
+		if (!snapshotFile.isFile()) {
+			return null;
+		}
+
+		try (SnapshotReader in = new SnapshotReader(snapshotFile)) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != in.length()
+					|| in.readBoolean() != mapped) {
+				return null;
+			}
+
+			long size = xmlFile.length();
+			long modified = xmlFile.lastModified();
+			if (!in.readString().equals(xmlFile.getCanonicalPath()) || in.readLong() != size
+					|| in.readLong() != modified || in.readLong() != checksum(xmlFile)) {
+				return null;
+			}
+
+			XmlIndex index = mapped ? MappedXmlIndex.open(xmlFile) : new ParsedXmlIndex();
+			index.readSnapshot(in);
+			LabelIndex labelIndex = new LabelIndex(index);
+			labelIndex.readSnapshot(in);
+			TagIndex tagIndex = new TagIndex(index);
+			tagIndex.readSnapshot(in);
+
+			return new IndexSnapshot(index, labelIndex, tagIndex);
+		} catch (IOException | RuntimeException e) {
+			// The file is parsed instead and a new snapshot replaces this one
+			System.err.println("Could not read the snapshot of " + xmlFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Writes the snapshot of a completely loaded file. The file must still
+	// have the given size and modification time, which it had when the
+	// load started. Called once loading is done, when the indexes no
+	// longer change.
+	public static void save(File xmlFile, long size, long modified, XmlIndex index, LabelIndex labelIndex,
+			TagIndex tagIndex) throws IOException {
+
+		if (!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) {
+			throw new IOException("Could not create " + DIRECTORY);
+		}
+
+		File snapshotFile = snapshotFile(xmlFile);
+		File partFile = new File(snapshotFile.getPath() + ".part");
+
+		try (SnapshotWriter out = new SnapshotWriter(partFile)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(0);
+			out.writeBoolean(index instanceof MappedXmlIndex);
+
+			out.writeString(xmlFile.getCanonicalPath());
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeLong(checksum(xmlFile));
+
+			index.writeSnapshot(out);
+			labelIndex.writeSnapshot(out);
+			tagIndex.writeSnapshot(out);
+
+			out.writeLongAt(LENGTH_POSITION, out.position());
+		} catch (IOException e) {
+			partFile.delete();
+			throw e;
+		}
+
+		if (xmlFile.length() != size || xmlFile.lastModified() != modified) {
+			// Changed while it was loaded, the snapshot may not match
+			partFile.delete();
+			return;
+		}
+		Files.move(partFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// One snapshot per file, named after the file and its full path
+	private static File snapshotFile(File xmlFile) {
+
+		String path;
+		try {
+			path = xmlFile.getCanonicalPath();
+		} catch (IOException e) {
+			path = xmlFile.getAbsolutePath();
+		}
+
+		CRC32C pathChecksum = new CRC32C();
+		pathChecksum.update(path.getBytes(StandardCharsets.UTF_8));
+		String name = xmlFile.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+
+		return new File(DIRECTORY, String.format("%s-%08x.snapshot", name, pathChecksum.getValue()));
+	}
+
+	// Checksum of the content of a file
+	private static long checksum(File file) throws IOException {
+
+		CRC32C checksum = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				checksum.update(buffer);
+				buffer.clear();
+			}
+		}
+		return checksum.getValue();
+	}
+}
@@ -0,0 +1,455 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted index from the trigrams of the lower case node labels to the
+ * elements of an XmlIndex, for substring search without visiting every
+ * element. Documents repeat the same labels many times, so each distinct
+ * label is stored once with a chain of the elements that carry it, and the
+ * trigram postings list distinct labels.
+ *
+ * The index is filled incrementally while the document loads. Elements are
+ * only indexed once they are closed, as their label can still change while
+ * they are open. If the distinct labels outgrow their share of the heap,
+ * the index is dropped and searches fall back to a scan of all labels.
+ *
+ * All methods must be called with the XmlIndex locked.
+ */
+public class LabelIndex {
+
+	// Distinct labels may use up to this fraction of the maximum heap
+	private static final int HEAP_FRACTION = 8;
+
+	// Rough heap cost of one distinct label besides its characters
+	private static final int LABEL_OVERHEAD = 96;
+
+	private final XmlIndex index;
+	private final long memoryLimit = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	private long memoryUsed;
+	private boolean dropped;
+
+	// Distinct lower case labels and, for each, the last element carrying it
+	private final Map<String, Integer> labelIds = new HashMap<>();
+	private String[] labels = new String[XmlIndex.INITIAL_CAPACITY];
+	private int[] lastElement = new int[XmlIndex.INITIAL_CAPACITY];
+	private int labelCount;
+
+	// Previous element with the same label, -1 ends the chain
+	private int[] previousElement = new int[XmlIndex.INITIAL_CAPACITY];
+
+	// Label ids containing each trigram, in increasing order
+	private final Map<Long, IntList> postings = new HashMap<>();
+
+	// Elements below this id are indexed, except for the deferred ones which
+	// were still open at the time
+	private int indexedSize;
+	private IntList deferred = new IntList();
+
+	public LabelIndex(XmlIndex index) {
+		this.index = index;
+	}
+
+	// Indexes the elements closed since the last call
+	public void update() {
+
+		if (dropped) {
+			return;
+		}
+
+		int size = index.size();
+		if (size > previousElement.length) {
+			previousElement = Arrays.copyOf(previousElement, Math.max(size, previousElement.length * 2));
+		}
+
+		IntList stillOpen = new IntList();
+		for (int i = 0; i < deferred.size(); i++) {
+			addOrDefer(deferred.get(i), stillOpen);
+		}
+		for (int id = indexedSize; id < size; id++) {
+			addOrDefer(id, stillOpen);
+		}
+		deferred = stillOpen;
+		indexedSize = size;
+
+		if (memoryUsed > memoryLimit) {
+			drop();
+		}
+	}
+
+	// Follows a replacement of the elements from..to by the elements
+	// from..newTo, the ids after them moved by the difference. Only the new
+	// elements and their parent, whose label may have changed, are looked
+	// up, the chains are relinked from the label of each element.
+	public void replaceElements(int parentId, int from, int to, int newTo) {
+
+		if (dropped) {
+			return;
+		}
+
+		int size = index.size();
+		int oldSize = size - (newTo - to);
+		if (indexedSize != oldSize || !deferred.isEmpty()) {
+			// Not indexed up to the replacement, update() indexes it all
+			reset();
+			return;
+		}
+
+		int[] labelOf = new int[Math.max(oldSize, size)];
+		for (int labelId = 0; labelId < labelCount; labelId++) {
+			for (int id = lastElement[labelId]; id >= 0; id = previousElement[id]) {
+				labelOf[id] = labelId;
+			}
+		}
+		System.arraycopy(labelOf, to, labelOf, newTo, oldSize - to);
+		labelOf[parentId] = labelId(index.label(parentId).toLowerCase());
+		for (int id = from; id < newTo; id++) {
+			labelOf[id] = labelId(index.label(id).toLowerCase());
+		}
+
+		if (size > previousElement.length) {
+			previousElement = Arrays.copyOf(previousElement, Math.max(size, previousElement.length * 2));
+		}
+		Arrays.fill(lastElement, 0, labelCount, -1);
+		for (int id = 0; id < size; id++) {
+			previousElement[id] = lastElement[labelOf[id]];
+			lastElement[labelOf[id]] = id;
+		}
+		indexedSize = size;
+
+		if (memoryUsed > memoryLimit) {
+			drop();
+		}
+	}
+
+	// Forgets the indexed elements after the index was renumbered, the
+	// next update() indexes them all again
+	private void reset() {
+
+		if (dropped) {
+			return;
+		}
+
+		labelIds.clear();
+		postings.clear();
+		labels = new String[XmlIndex.INITIAL_CAPACITY];
+		lastElement = new int[XmlIndex.INITIAL_CAPACITY];
+		labelCount = 0;
+		indexedSize = 0;
+		deferred = new IntList();
+		memoryUsed = 0;
+	}
+
+	// Finds the elements whose lower case label contains the query, in the
+	// order of XmlIndex.postOrder()
+	public void find(String query, IntList matches) {
+
+		IntList found = matchingElements(query);
+
+		if (found == null) {
+			index.postOrder(id -> {
+				if (index.label(id).toLowerCase().contains(query)) {
+					matches.add(id);
+				}
+			});
+		} else {
+			index.sortByPostOrder(found, matches);
+		}
+	}
+
+	// Elements whose lower case label contains the query, in no particular
+	// order, or null once the index has been dropped
+	public IntList matchingElements(String query) {
+
+		update();
+		if (dropped) {
+			return null;
+		}
+
+		IntList found = new IntList();
+		IntList candidates = candidateLabels(query);
+
+		for (int i = 0; i < candidates.size(); i++) {
+			int labelId = candidates.get(i);
+			if (labels[labelId].contains(query)) {
+				addElements(labelId, found);
+			}
+		}
+
+		// Open elements are not indexed yet
+		for (int i = 0; i < deferred.size(); i++) {
+			int id = deferred.get(i);
+			if (index.label(id).toLowerCase().contains(query)) {
+				found.add(id);
+			}
+		}
+		return found;
+	}
+
+	// Elements whose label is accepted by a matcher, in no particular order,
+	// or null once the index has been dropped. The matcher sees each
+	// distinct label once, in lower case.
+	public IntList matchingElements(TextMatcher matcher) {
+
+		update();
+		if (dropped) {
+			return null;
+		}
+
+		IntList found = new IntList();
+
+		for (int labelId = 0; labelId < labelCount; labelId++) {
+			if (matcher.matches(labels[labelId])) {
+				addElements(labelId, found);
+			}
+		}
+
+		for (int i = 0; i < deferred.size(); i++) {
+			int id = deferred.get(i);
+			if (matcher.matches(index.label(id).toLowerCase())) {
+				found.add(id);
+			}
+		}
+		return found;
+	}
+
+	// Writes the index of a complete document to a snapshot
+	void writeSnapshot(SnapshotWriter out) throws IOException {
+
+		out.writeBoolean(dropped);
+		if (dropped) {
+			return;
+		}
+
+		out.writeInt(labelCount);
+		for (int labelId = 0; labelId < labelCount; labelId++) {
+			out.writeString(labels[labelId]);
+		}
+		out.writeInts(lastElement, labelCount);
+		out.writeInt(indexedSize);
+		out.writeInts(previousElement, indexedSize);
+		out.writeInt(deferred.size());
+		out.writeInts(deferred.toArray(), deferred.size());
+
+		out.writeInt(postings.size());
+		for (Map.Entry<Long, IntList> entry : postings.entrySet()) {
+			IntList list = entry.getValue();
+			out.writeLong(entry.getKey());
+			out.writeInt(list.size());
+			out.writeInts(list.toArray(), list.size());
+		}
+		out.writeLong(memoryUsed);
+	}
+
+	// Fills a new index from a snapshot written by writeSnapshot()
+	void readSnapshot(SnapshotReader in) throws IOException {
+
+		if (in.readBoolean()) {
+			drop();
+			return;
+		}
+
+		int count = in.readInt();
+		String[] names = new String[Math.max(count, 1)];
+		for (int labelId = 0; labelId < count; labelId++) {
+			names[labelId] = in.readString();
+		}
+		int[] last = Arrays.copyOf(in.readInts(count), names.length);
+		int indexed = in.readInt();
+		int[] previous = in.readInts(indexed);
+		int[] open = in.readInts(in.readInt());
+
+		if (indexed != index.size() || !areElements(last, count) || !areElements(previous, indexed)
+				|| !areElements(open, open.length)) {
+			throw new IOException("Snapshot is damaged");
+		}
+
+		int postingCount = in.readInt();
+		for (int i = 0; i < postingCount; i++) {
+			long key = in.readLong();
+			int[] labelIds = in.readInts(in.readInt());
+			IntList list = new IntList(labelIds.length);
+			for (int labelId : labelIds) {
+				if (labelId < 0 || labelId >= count) {
+					throw new IOException("Snapshot is damaged");
+				}
+				list.add(labelId);
+			}
+			postings.put(key, list);
+		}
+		memoryUsed = in.readLong();
+
+		// The snapshot may come from a run with a larger heap
+		if (memoryUsed > memoryLimit) {
+			drop();
+			return;
+		}
+
+		for (int labelId = 0; labelId < count; labelId++) {
+			labelIds.put(names[labelId], labelId);
+		}
+		labels = names;
+		lastElement = last;
+		labelCount = count;
+		previousElement = previous;
+		indexedSize = indexed;
+		deferred = new IntList(open.length);
+		for (int id : open) {
+			deferred.add(id);
+		}
+	}
+
+	// Whether the first count values are element ids or -1
+	private boolean areElements(int[] values, int count) {
+
+		for (int i = 0; i < count; i++) {
+			if (values[i] < -1 || values[i] >= index.size()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void addElements(int labelId, IntList found) {
+
+		for (int id = lastElement[labelId]; id >= 0; id = previousElement[id]) {
+			found.add(id);
+		}
+	}
+
+	// Labels containing every trigram of the query. Shorter queries have no
+	// trigram and check every distinct label.
+	private IntList candidateLabels(String query) {
+
+		IntList candidates = new IntList();
+
+		if (query.length() < 3) {
+			for (int labelId = 0; labelId < labelCount; labelId++) {
+				candidates.add(labelId);
+			}
+			return candidates;
+		}
+
+		IntList[] lists = new IntList[query.length() - 2];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = postings.get(trigram(query, i));
+			if (lists[i] == null) {
+				return candidates;
+			}
+		}
+		Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+
+		IntList shortest = lists[0];
+		for (int i = 0; i < shortest.size(); i++) {
+			int labelId = shortest.get(i);
+			boolean inAll = true;
+			for (int j = 1; j < lists.length && inAll; j++) {
+				inAll = contains(lists[j], labelId);
+			}
+			if (inAll) {
+				candidates.add(labelId);
+			}
+		}
+		return candidates;
+	}
+
+	private void addOrDefer(int id, IntList stillOpen) {
+
+		if (index.isOpen(id)) {
+			stillOpen.add(id);
+			return;
+		}
+
+		int labelId = labelId(index.label(id).toLowerCase());
+		previousElement[id] = lastElement[labelId];
+		lastElement[labelId] = id;
+	}
+
+	private int labelId(String label) {
+
+		Integer labelId = labelIds.get(label);
+		return labelId != null ? labelId : addLabel(label);
+	}
+
+	private int addLabel(String label) {
+
+		int labelId = labelCount++;
+		if (labelId == labels.length) {
+			labels = Arrays.copyOf(labels, labelId * 2);
+			lastElement = Arrays.copyOf(lastElement, labelId * 2);
+		}
+
+		labels[labelId] = label;
+		lastElement[labelId] = -1;
+		labelIds.put(label, labelId);
+
+		for (int i = 0; i + 3 <= label.length(); i++) {
+			IntList list = postings.computeIfAbsent(trigram(label, i), key -> new IntList(4));
+			// A trigram may repeat within the label
+			if (list.isEmpty() || list.get(list.size() - 1) != labelId) {
+				list.add(labelId);
+			}
+		}
+
+		// Characters, postings entries and the map entry
+		memoryUsed += label.length() * 6L + LABEL_OVERHEAD;
+		return labelId;
+	}
+
+	// Releases the index once it is too large, find() then scans the labels
+	private void drop() {
+
+		dropped = true;
+		labelIds.clear();
+		postings.clear();
+		labels = null;
+		lastElement = null;
+		previousElement = null;
+		deferred = null;
+	}
+
+	private static long trigram(String text, int start) {
+		return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16 | text.charAt(start + 2);
+	}
+
+	// Binary search of a sorted list
+	private static boolean contains(IntList list, int value) {
+
+		int low = 0;
+		int high = list.size() - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleValue = list.get(middle);
+
+			if (middleValue < value) {
+				low = middle + 1;
+			} else if (middleValue > value) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search on the node labels, ignoring case: a substring, any of several
+ * terms or a regular expression. Distinct labels are checked through the
+ * label index while it is available. Otherwise each label is copied into a
+ * reused buffer and run through the compiled matcher, so no string is
+ * created per element.
+ */
+public class LabelQuery implements ElementQuery {
+
+	private final XmlIndex index;
+	private final LabelIndex labelIndex;
+	private final TextMatcher matcher;
+	private final StringBuilder buffer = new StringBuilder();
+
+	// Lower case substring looked up through the trigrams, or null to run
+	// the matcher on every distinct label
+	private final String substring;
+
+	private LabelQuery(XmlIndex index, LabelIndex labelIndex, TextMatcher matcher, String substring) {
+		this.index = index;
+		this.labelIndex = labelIndex;
+		this.matcher = matcher;
+		this.substring = substring;
+	}
+
+	// The text must already be in lower case
+	public static LabelQuery text(XmlIndex index, LabelIndex labelIndex, String text) {
+		return new LabelQuery(index, labelIndex, new TermMatcher(Collections.singletonList(text)), text);
+	}
+
+	public static LabelQuery anyTerm(XmlIndex index, LabelIndex labelIndex, List<String> terms) {
+		return new LabelQuery(index, labelIndex, new TermMatcher(terms), null);
+	}
+
+	// Throws PatternSyntaxException for an invalid expression
+	public static LabelQuery regex(XmlIndex index, LabelIndex labelIndex, String regex) {
+		return new LabelQuery(index, labelIndex, new RegexMatcher(regex), null);
+	}
+
+	@Override
+	public IntList prepare() {
+
+		if (substring != null) {
+			return labelIndex.matchingElements(substring);
+		}
+		return labelIndex.matchingElements(matcher);
+	}
+
+	@Override
+	public boolean matches(int id) {
+
+		buffer.setLength(0);
+		index.appendLabel(id, buffer);
+		return matcher.matches(buffer);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Receives progress from a loader while it fills an index, and lets the
+ * caller cancel the load. Loaders add elements in batches while holding the
+ * index lock and report a checkpoint after each batch with the lock released.
+ */
+public interface LoadMonitor {
+
+	// Elements added between two checkpoints
+	int BATCH_SIZE = 4096;
+
+	LoadMonitor NONE = new LoadMonitor() {
+
+		@Override
+		public void progress(long bytesRead) {
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+	};
+
+	void progress(long bytesRead);
+
+	boolean isCancelled();
+
+	default void checkpoint(long bytesRead) {
+
+		if (isCancelled()) {
+			throw new CancellationException("Loading cancelled");
+		}
+		progress(bytesRead);
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fills the index of a tree model in the background. Elements are shown in
+ * the tree in batches on the EDT as they arrive, with the bytes read and
+ * nodes built in a progress bar and a button to cancel the load. Several
+ * files are loaded side by side with a MultiFileLoader.
+ */
+public class LoadWorker extends SwingWorker<Void, Long> implements LoadMonitor {
+
+	private final List<File> files;
+	private final File xmlFile;
+	private final long totalLength;
+	private final String loader;
+	private final int threads;
+	private final long memoryLimit;
+	private final XmlTreeModel treeModel;
+	private final LabelIndex labelIndex;
+	private final TagIndex tagIndex;
+	private final JProgressBar progressBar;
+	private final JButton cancelButton;
+	private final boolean saveSnapshot;
+	private final long startTime = System.nanoTime();
+
+	// Files that fit under the memory limit
+	private volatile int filesLoaded;
+
+	// The file as it was when loading started, a snapshot is only saved if
+	// it has not changed since
+	private final long fileSize;
+	private final long fileModified;
+
+	// Snapshots are only saved for a single file. The memory limit applies
+	// to several files.
+	public LoadWorker(List<File> files, String loader, int threads, long memoryLimit, XmlTreeModel treeModel,
+			LabelIndex labelIndex, TagIndex tagIndex, JProgressBar progressBar, JButton cancelButton,
+			boolean saveSnapshot) {
+
+		this.files = files;
+		this.xmlFile = files.get(0);
+		this.loader = loader;
+		this.threads = threads;
+		this.memoryLimit = memoryLimit;
+		this.treeModel = treeModel;
+		this.labelIndex = labelIndex;
+		this.tagIndex = tagIndex;
+		this.progressBar = progressBar;
+		this.cancelButton = cancelButton;
+		this.saveSnapshot = saveSnapshot && files.size() == 1;
+		this.fileSize = xmlFile.length();
+		this.fileModified = xmlFile.lastModified();
+
+		long length = 0;
+		for (File file : files) {
+			length += file.length();
+		}
+		this.totalLength = length;
+
+		progressBar.setMinimum(0);
+		progressBar.setMaximum(1000);
+		progressBar.setStringPainted(true);
+		progressBar.setString("Loading " + describeFiles());
+		cancelButton.addActionListener(e -> cancel(false));
+	}
+
+	@Override
+	protected Void doInBackground() throws Exception {
+
+		XmlIndex index = treeModel.getIndex();
+		if (files.size() > 1) {
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+				phase.setDetail("stax, " + files.size() + " files");
+				filesLoaded = MultiFileLoader.load(files, (ParsedXmlIndex) index, threads, memoryLimit, this);
+			}
+			PhaseStats.documentLoaded(index);
+			return null;
+		}
+
+		XmlTreeViewer.loadIndex(xmlFile, loader, threads, index, this);
+		filesLoaded = 1;
+		PhaseStats.documentLoaded(index);
+
+		if (saveSnapshot) {
+			updateIndexes();
+			try {
+				IndexSnapshot.save(xmlFile, fileSize, fileModified, index, labelIndex, tagIndex);
+			} catch (IOException e) {
+				System.err.println("Could not save a snapshot of " + xmlFile + ": " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	// Indexes the labels and tags of each batch on the loading thread, so
+	// that a search does not have to catch up with the whole document
+	@Override
+	public void checkpoint(long bytesRead) {
+
+		LoadMonitor.super.checkpoint(bytesRead);
+		updateIndexes();
+	}
+
+	private void updateIndexes() {
+
+		try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.INDEX)) {
+			synchronized (treeModel.getIndex()) {
+				labelIndex.update();
+				tagIndex.update();
+				phase.setDetail(String.format("labels and tags, %,d elements", treeModel.getIndex().size()));
+			}
+		}
+	}
+
+	@Override
+	public void progress(long bytesRead) {
+		publish(bytesRead);
+	}
+
+	@Override
+	protected void process(List<Long> chunks) {
+
+		showNewElements();
+
+		long bytesRead = chunks.get(chunks.size() - 1);
+		long length = Math.max(totalLength, 1);
+		progressBar.setValue((int) Math.min(1000, bytesRead * 1000 / length));
+		progressBar.setString(String.format("Loading %.1f of %.1f MB, %,d nodes", bytesRead / 1e6, length / 1e6,
+				elementCount()));
+	}
+
+	@Override
+	protected void done() {
+
+		showNewElements();
+		cancelButton.setVisible(false);
+
+		try {
+			get();
+			progressBar.setValue(progressBar.getMaximum());
+			String loaded = String.format("Loaded %,d nodes in %.1f s", elementCount(),
+					(System.nanoTime() - startTime) / 1e9);
+			if (filesLoaded < files.size()) {
+				loaded += String.format(", %d of %d files fit the memory limit", filesLoaded, files.size());
+			}
+
+			// Strings kept once by the load-time symbol tables
+			XmlIndex index = treeModel.getIndex();
+			if (index instanceof ParsedXmlIndex) {
+				synchronized (index) {
+					ParsedXmlIndex parsed = (ParsedXmlIndex) index;
+					loaded += String.format(", %,d unique strings, %.1f MB saved", parsed.uniqueStrings(),
+							parsed.bytesSaved() / 1e6);
+				}
+			}
+			progressBar.setString(loaded);
+		} catch (CancellationException | InterruptedException e) {
+			progressBar.setString(String.format("Loading cancelled, %,d nodes loaded", elementCount()));
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CancellationException) {
+				progressBar.setString(String.format("Loading cancelled, %,d nodes loaded", elementCount()));
+			} else {
+				progressBar.setString("Loading failed");
+				JOptionPane.showMessageDialog(null, "Could not load " + describeFiles() + ":\n" + cause.getMessage());
+			}
+		}
+	}
+
+	// Adds the nodes of the new elements to the tree, the part of building
+	// the tree that happens during the load
+	private void showNewElements() {
+
+		try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.BUILD)) {
+			phase.setDetail("tree");
+			treeModel.indexGrew();
+		}
+	}
+
+	private String describeFiles() {
+		return files.size() == 1 ? xmlFile.getName() : files.size() + " files";
+	}
+
+	private int elementCount() {
+
+		XmlIndex index = treeModel.getIndex();
+		synchronized (index) {
+			return index.size();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only memory mapping of an XML file, with the byte level helpers the
+ * mapped index and the parallel loader scan it with. Files are mapped in
+ * 1 GB segments, the limit of one MappedByteBuffer.
+ *
+ * Only ASCII compatible encodings (UTF-8, ASCII and ISO-8859-1) can be
+ * scanned this way; open() rejects anything else.
+ */
+public class MappedXmlFile {
+
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+	private final MappedByteBuffer[] segments;
+	private final long length;
+	private Charset charset = StandardCharsets.UTF_8;
+
+	private MappedXmlFile(MappedByteBuffer[] segments, long length) {
+		this.segments = segments;
+		this.length = length;
+	}
+
+	// Maps the file and checks its encoding
+	public static MappedXmlFile open(File xmlFile) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(xmlFile.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+
+			for (int i = 0; i < segments.length; i++) {
+				long position = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+			}
+
+			MappedXmlFile file = new MappedXmlFile(segments, length);
+			file.checkNotCompressed();
+			file.charset = file.detectCharset();
+			return file;
+		}
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public Charset charset() {
+		return charset;
+	}
+
+	// Stream over the bytes from one offset to another
+	public InputStream openStream(long from, long to) {
+
+		return new InputStream() {
+
+			private long position = from;
+
+			@Override
+			public int read() {
+				return position < to ? byteAt(position++) & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) {
+
+				if (position >= to) {
+					return -1;
+				}
+
+				ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+				int segmentOffset = (int) (position & SEGMENT_MASK);
+				int n = (int) Math.min(Math.min(count, to - position), segment.limit() - segmentOffset);
+
+				segment.position(segmentOffset);
+				segment.get(buffer, offset, n);
+				position += n;
+				return n;
+			}
+		};
+	}
+
+	public byte byteAt(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+	}
+
+	public boolean startsWith(long position, String prefix) {
+
+		if (position + prefix.length() > length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (byteAt(position + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long skipTo(long position, byte target) throws IOException {
+
+		while (position < length) {
+			if (byteAt(position) == target) {
+				return position;
+			}
+			position++;
+		}
+		throw new IOException("Unexpected end of file");
+	}
+
+	public long skipPast(long position, String terminator) throws IOException {
+
+		byte first = (byte) terminator.charAt(0);
+
+		while (true) {
+			position = skipTo(position, first);
+			if (startsWith(position, terminator)) {
+				return position + terminator.length();
+			}
+			position++;
+		}
+	}
+
+	// Position just past the '>' of the tag starting at position, or -1
+	public long skipTag(long position) {
+
+		byte quote = 0;
+
+		for (position++; position < length; position++) {
+			byte b = byteAt(position);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return position + 1;
+			}
+		}
+		return -1;
+	}
+
+	// Position just past a DOCTYPE declaration, including an internal subset
+	public long skipDoctype(long position) throws IOException {
+
+		byte quote = 0;
+		int brackets = 0;
+
+		for (position++; position < length; position++) {
+			byte b = byteAt(position);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '[') {
+				brackets++;
+			} else if (b == ']') {
+				brackets--;
+			} else if (b == '>' && brackets == 0) {
+				return position + 1;
+			}
+		}
+		throw new IOException("Unterminated declaration at end of file");
+	}
+
+	// 64 bit checksum of a range of bytes, two CRCs side by side so that
+	// unequal ranges are practically never taken for equal
+	public long checksum(long from, long to) {
+
+		CRC32C first = new CRC32C();
+		CRC32 second = new CRC32();
+
+		while (from < to) {
+			ByteBuffer segment = segments[(int) (from >>> SEGMENT_SHIFT)].duplicate();
+			int segmentOffset = (int) (from & SEGMENT_MASK);
+			int n = (int) Math.min(to - from, segment.limit() - segmentOffset);
+
+			segment.position(segmentOffset).limit(segmentOffset + n);
+			first.update(segment);
+			segment.position(segmentOffset);
+			second.update(segment);
+			from += n;
+		}
+		return first.getValue() << 32 | second.getValue();
+	}
+
+	public static boolean isNameEnd(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>';
+	}
+
+	public String decode(long from, long to) {
+
+		byte[] bytes = new byte[(int) (to - from)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = byteAt(from + i);
+		}
+		return new String(bytes, charset);
+	}
+
+	// Character data of an element: CDATA is kept, comments and processing
+	// instructions are dropped and the predefined entities are replaced
+	public String decodeContent(long from, long to) {
+
+		StringBuilder text = new StringBuilder();
+		long runStart = from;
+		long position = from;
+
+		while (position < to) {
+			byte b = byteAt(position);
+
+			if (b == '<') {
+				text.append(decodeLines(runStart, position));
+				if (startsWith(position, "<![CDATA[")) {
+					long cdataEnd = find(position, to, "]]>");
+					text.append(decodeLines(position + 9, cdataEnd));
+					position = cdataEnd + 3;
+				} else if (startsWith(position, "<!--")) {
+					position = find(position, to, "-->") + 3;
+				} else {
+					position = find(position, to, "?>") + 2;
+				}
+				runStart = position;
+			} else if (b == '&') {
+				text.append(decodeLines(runStart, position));
+				long entityEnd = find(position, to, ";");
+				text.append(decodeEntity(decode(position + 1, entityEnd)));
+				position = entityEnd + 1;
+				runStart = position;
+			} else {
+				position++;
+			}
+		}
+
+		text.append(decodeLines(runStart, Math.min(position, to)));
+		return text.toString();
+	}
+
+	// Decodes bytes as written, with line endings normalized like a parser
+	// would. A carriage return from a character reference is kept, so the
+	// bytes are normalized before references are replaced.
+	private String decodeLines(long from, long to) {
+
+		String text = decode(from, to);
+		if (text.indexOf('\r') >= 0) {
+			return text.replace("\r\n", "\n").replace('\r', '\n');
+		}
+		return text;
+	}
+
+	private long find(long position, long to, String terminator) {
+
+		while (position < to) {
+			if (startsWith(position, terminator)) {
+				return position;
+			}
+			position++;
+		}
+		return to;
+	}
+
+	private static String decodeEntity(String entity) {
+
+		switch (entity) {
+		case "lt":
+			return "<";
+		case "gt":
+			return ">";
+		case "amp":
+			return "&";
+		case "quot":
+			return "\"";
+		case "apos":
+			return "'";
+		default:
+			break;
+		}
+
+		try {
+			if (entity.startsWith("#x")) {
+				return new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+			}
+			if (entity.startsWith("#")) {
+				return new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+			}
+		} catch (IllegalArgumentException e) {
+			// Left as written below
+		}
+		return "&" + entity + ";";
+	}
+
+	// Compressed files are parsed as a stream, the loaders that map the
+	// file fall back to it on this error
+	private void checkNotCompressed() throws IOException {
+
+		byte[] header = new byte[(int) Math.min(length, DecompressingInputStream.HEADER_LENGTH)];
+		for (int i = 0; i < header.length; i++) {
+			header[i] = byteAt(i);
+		}
+
+		DecompressingInputStream.Format format = DecompressingInputStream.detect(header, header.length);
+		if (format != null) {
+			throw new IOException("The file is " + format.name().toLowerCase() + " compressed and cannot be mapped");
+		}
+	}
+
+	// Encoding from the byte order mark or the XML declaration
+	private Charset detectCharset() throws IOException {
+
+		if (length >= 2 && ((byteAt(0) == (byte) 0xFE && byteAt(1) == (byte) 0xFF)
+				|| (byteAt(0) == (byte) 0xFF && byteAt(1) == (byte) 0xFE))) {
+			throw new IOException("UTF-16 documents are not supported by the mapped loader");
+		}
+
+		if (!startsWith(0, "<?xml") && !(length >= 3 && byteAt(0) == (byte) 0xEF && startsWith(3, "<?xml"))) {
+			return StandardCharsets.UTF_8;
+		}
+
+		long declarationEnd = skipPast(0, "?>");
+		Matcher encodingMatcher = ENCODING.matcher(decode(0, declarationEnd));
+		if (!encodingMatcher.find()) {
+			return StandardCharsets.UTF_8;
+		}
+
+		String encoding = encodingMatcher.group(1).toUpperCase(Locale.ROOT);
+		switch (encoding) {
+		case "UTF-8":
+		case "UTF8":
+			return StandardCharsets.UTF_8;
+		case "US-ASCII":
+		case "ASCII":
+			return StandardCharsets.US_ASCII;
+		case "ISO-8859-1":
+		case "LATIN1":
+			return StandardCharsets.ISO_8859_1;
+		default:
+			throw new IOException("Encoding " + encoding + " is not supported by the mapped loader");
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Element index over a memory-mapped file, for documents larger than the
+ * heap. A single scan records the byte offsets of each element; tag names,
+ * attributes and leaf text are decoded from the mapped file only when
+ * asked for, so the heap holds a few primitive arrays and no document text.
+ *
+ * The heap still grows with the number of elements: 24 bytes each, the
+ * structure columns of XmlIndex and the start offset, and while the scan
+ * runs a column may briefly be held twice as it grows by half. A file of
+ * 5 GB with 100 million elements needs about 2.4 GB of heap, so the limit
+ * is the element count, not the file size.
+ *
+ * Entities declared in a DTD are not expanded.
+ */
+public class MappedXmlIndex extends XmlIndex {
+
+	private final MappedXmlFile file;
+	private final long length;
+
+	// Offset of the '<' of the start tag. Where an element ends is found
+	// from the file when needed, only leaf text asks for it.
+	private long[] start = new long[INITIAL_CAPACITY];
+
+	private MappedXmlIndex(MappedXmlFile file) {
+		this.file = file;
+		this.length = file.length();
+	}
+
+	public static MappedXmlIndex load(File xmlFile) throws IOException {
+
+		MappedXmlIndex index = open(xmlFile);
+		index.scan(LoadMonitor.NONE);
+		return index;
+	}
+
+	// Maps the file and checks its encoding, scan then fills the index
+	public static MappedXmlIndex open(File xmlFile) throws IOException {
+		return new MappedXmlIndex(MappedXmlFile.open(xmlFile));
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long startOffset(int id) {
+		return start[id];
+	}
+
+
+	@Override
+	public String tagName(int id) {
+		return tagNameAt(start[id]);
+	}
+
+	@Override
+	public int attributeCount(int id) {
+		return attributeRanges(id).length / 4;
+	}
+
+	@Override
+	public String attributeName(int id, int n) {
+
+		long[] ranges = attributeRanges(id, n);
+		return file.decode(ranges[n * 4], ranges[n * 4 + 1]);
+	}
+
+	@Override
+	public String attributeValue(int id, int n) {
+
+		long[] ranges = attributeRanges(id, n);
+		return file.decodeContent(ranges[n * 4 + 2], ranges[n * 4 + 3]);
+	}
+
+	// Scans the start tag once for all attributes
+	@Override
+	protected void appendAttributes(int id, StringBuilder buffer, int maxValueLength) {
+
+		long[] ranges = attributeRanges(id);
+		for (int i = 0; i < ranges.length; i += 4) {
+			String value = file.decodeContent(ranges[i + 2], ranges[i + 3]);
+			buffer.append(' ').append(file.decode(ranges[i], ranges[i + 1])).append("=\"");
+			buffer.append(value, 0, Math.min(value.length(), maxValueLength));
+			if (value.length() > maxValueLength) {
+				buffer.append("...");
+			}
+			buffer.append('"');
+		}
+	}
+
+	@Override
+	public String leafText(int id) {
+
+		if (childCount(id) > 0 || isOpen(id)) {
+			// Parent or still open
+			return null;
+		}
+
+		long contentStart = file.skipTag(start[id]);
+		if (file.byteAt(contentStart - 2) == '/') {
+			// Empty element tag
+			return null;
+		}
+
+		String text = file.decodeContent(contentStart, contentEnd(contentStart)).trim();
+		return text.isEmpty() ? null : text;
+	}
+
+	@Override
+	void writeSnapshot(SnapshotWriter out) throws IOException {
+
+		super.writeSnapshot(out);
+		out.writeLongs(start, size);
+	}
+
+	@Override
+	void readSnapshot(SnapshotReader in) throws IOException {
+
+		super.readSnapshot(in);
+		long[] starts = in.readLongs(size);
+
+		for (int id = 0; id < size; id++) {
+			if (starts[id] < 0 || starts[id] >= length) {
+				throw new IOException("Snapshot is damaged");
+			}
+		}
+
+		start = starts;
+	}
+
+	@Override
+	public void trimToSize() {
+
+		super.trimToSize();
+		start = Arrays.copyOf(start, size);
+	}
+
+	@Override
+	protected void grow(int capacity) {
+
+		super.grow(capacity);
+		start = Arrays.copyOf(start, capacity);
+	}
+
+	// Single pass over the mapped bytes, recording the element offsets.
+	// Reading the file may wait for the disk, so each batch is scanned
+	// without the lock, which is only taken to add its elements.
+	public void scan(LoadMonitor monitor) throws IOException {
+
+		Scan scan = new Scan();
+		long position = 0;
+
+		while (position < length) {
+			position = scanBatch(position, scan);
+			synchronized (this) {
+				publish(scan);
+			}
+			monitor.checkpoint(position);
+		}
+
+		if (scan.openCount > 0 || size == 0) {
+			throw new IOException("Unexpected end of file, the document is incomplete");
+		}
+
+		synchronized (this) {
+			trimToSize();
+		}
+	}
+
+	// Scans until a batch of events has been found, returns the position reached
+	private long scanBatch(long position, Scan scan) throws IOException {
+
+		while (position < length && scan.eventCount < scan.events.length) {
+			if (file.byteAt(position) != '<') {
+				position++;
+				continue;
+			}
+
+			byte next = position + 1 < length ? file.byteAt(position + 1) : 0;
+
+			if (next == '/') {
+				if (scan.openCount == 0) {
+					throw new IOException("Unexpected end tag at offset " + position);
+				}
+				long openStart = scan.openStarts[scan.openCount - 1];
+				if (!endTagMatches(openStart + 1, position + 2)) {
+					throw new IOException("End tag at offset " + position + " does not match <" + tagNameAt(openStart) + ">");
+				}
+				position = file.skipTo(position, (byte) '>') + 1;
+				scan.close();
+			} else if (next == '?') {
+				position = file.skipPast(position, "?>");
+			} else if (next == '!') {
+				if (file.startsWith(position, "<!--")) {
+					position = file.skipPast(position, "-->");
+				} else if (file.startsWith(position, "<![CDATA[")) {
+					position = file.skipPast(position, "]]>");
+				} else {
+					position = file.skipDoctype(position);
+				}
+			} else {
+				if (scan.openCount == 0 && scan.rootFound) {
+					throw new IOException("Content after the document element at offset " + position);
+				}
+				scan.open(position);
+				position = file.skipTag(position);
+				if (position < 0) {
+					throw new IOException("Unterminated tag at end of file");
+				}
+				if (file.byteAt(position - 2) == '/') {
+					scan.close();
+				}
+			}
+		}
+
+		return position;
+	}
+
+	// Adds the elements of a scanned batch, the caller holds the lock
+	private void publish(Scan scan) {
+
+		for (int i = 0; i < scan.eventCount; i++) {
+			if (scan.events[i] == Scan.CLOSE) {
+				closeElement();
+			} else {
+				int id = openElement();
+				start[id] = scan.events[i];
+			}
+		}
+		scan.eventCount = 0;
+	}
+
+	private String tagNameAt(long position) {
+
+		long nameStart = position + 1;
+		long nameEnd = nameStart;
+
+		while (nameEnd < length && !MappedXmlFile.isNameEnd(file.byteAt(nameEnd))) {
+			nameEnd++;
+		}
+		return file.decode(nameStart, nameEnd);
+	}
+
+	// Byte ranges of the attributes in the start tag of an element, four
+	// offsets per attribute: name start and end, value start and end
+	private long[] attributeRanges(int id) {
+
+		long tagEnd = file.skipTag(start[id]) - 1;
+		long position = start[id] + 1;
+		long[] ranges = new long[0];
+
+		while (position < tagEnd && !MappedXmlFile.isNameEnd(file.byteAt(position))) {
+			position++;
+		}
+
+		while (true) {
+			while (position < tagEnd && isSpace(file.byteAt(position))) {
+				position++;
+			}
+			if (position >= tagEnd || file.byteAt(position) == '/') {
+				return ranges;
+			}
+
+			long nameStart = position;
+			while (position < tagEnd && file.byteAt(position) != '=' && !isSpace(file.byteAt(position))) {
+				position++;
+			}
+			long nameEnd = position;
+
+			while (position < tagEnd && file.byteAt(position) != '"' && file.byteAt(position) != '\'') {
+				position++;
+			}
+			if (position >= tagEnd) {
+				return ranges;
+			}
+			byte quote = file.byteAt(position);
+			long valueStart = ++position;
+			while (position < tagEnd && file.byteAt(position) != quote) {
+				position++;
+			}
+
+			// Namespace declarations are left out like the parsers do
+			if (file.startsWith(nameStart, "xmlns") && (nameEnd == nameStart + 5 || file.byteAt(nameStart + 5) == ':')) {
+				position++;
+				continue;
+			}
+
+			ranges = Arrays.copyOf(ranges, ranges.length + 4);
+			ranges[ranges.length - 4] = nameStart;
+			ranges[ranges.length - 3] = nameEnd;
+			ranges[ranges.length - 2] = valueStart;
+			ranges[ranges.length - 1] = position;
+			position++;
+		}
+	}
+
+	private long[] attributeRanges(int id, int n) {
+
+		long[] ranges = attributeRanges(id);
+		if (n < 0 || n >= ranges.length / 4) {
+			throw new IndexOutOfBoundsException("Attribute " + n + " of element " + id);
+		}
+		return ranges;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	// Whether the names at two offsets are equal, the name of an end tag
+	// may be followed by white space before its '>'
+	private boolean endTagMatches(long startName, long endName) {
+
+		while (true) {
+			byte b = file.byteAt(startName++);
+			byte e = endName < length ? file.byteAt(endName++) : (byte) '>';
+			boolean startDone = MappedXmlFile.isNameEnd(b);
+			boolean endDone = MappedXmlFile.isNameEnd(e);
+			if (startDone || endDone) {
+				return startDone && endDone;
+			}
+			if (b != e) {
+				return false;
+			}
+		}
+	}
+
+	// End of the content of a leaf element that starts at an offset: its
+	// end tag, past any comments, CDATA sections and processing instructions
+	private long contentEnd(long position) {
+
+		while (position < length) {
+			if (file.byteAt(position) != '<') {
+				position++;
+			} else if (file.startsWith(position, "<![CDATA[")) {
+				position = skipPast(position, "]]>");
+			} else if (file.startsWith(position, "<!--")) {
+				position = skipPast(position, "-->");
+			} else if (file.startsWith(position, "<?")) {
+				position = skipPast(position, "?>");
+			} else {
+				return position;
+			}
+		}
+		return length;
+	}
+
+	// The scan has checked that the terminator is there
+	private long skipPast(long position, String terminator) {
+
+		try {
+			return file.skipPast(position, terminator);
+		} catch (IOException e) {
+			return length;
+		}
+	}
+
+	// State of the scan that only the loading thread sees
+	private static class Scan {
+
+		// Event for an end tag, other events are start tag offsets
+		static final long CLOSE = -1;
+
+		final long[] events = new long[LoadMonitor.BATCH_SIZE];
+		int eventCount;
+
+		// Start tags of the elements open at the end of the scanned bytes
+		long[] openStarts = new long[64];
+		int openCount;
+		boolean rootFound;
+
+		void open(long position) {
+
+			if (openCount == openStarts.length) {
+				openStarts = Arrays.copyOf(openStarts, openCount * 2);
+			}
+			openStarts[openCount++] = position;
+			events[eventCount++] = position;
+			rootFound = true;
+		}
+
+		void close() {
+
+			openCount--;
+			events[eventCount++] = CLOSE;
+		}
+	}
+}
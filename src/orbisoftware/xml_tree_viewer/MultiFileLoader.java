@@ -0,0 +1,175 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads several documents into one index, so they can be browsed and
+ * searched side by side. Each file becomes a child of a common root,
+ * labelled with the file name, with the root element of the document
+ * below it.
+ *
+ * Files are parsed into separate indexes on a pool of threads and appended
+ * in the order given, with a few parsed files waiting per thread. Loading
+ * stops before a file that would take the index past a memory limit.
+ */
+public class MultiFileLoader {
+
+	// Tag of the common root
+	public static final String ROOT_TAG = "files";
+
+	// Parsed files waiting to be appended are limited to this many per thread
+	private static final int PENDING_PER_THREAD = 2;
+
+	// Loads the files and returns how many fit under the memory limit. A
+	// file that cannot be parsed is shown with the error as its text.
+	public static int load(List<File> files, ParsedXmlIndex index, int threads, long memoryLimit,
+			LoadMonitor monitor) throws Exception {
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<ParsedXmlIndex>> tasks = new ArrayList<>();
+			int window = threads * PENDING_PER_THREAD;
+			long bytesRead = 0;
+			int loaded = 0;
+
+			synchronized (index) {
+				index.startElement(ROOT_TAG);
+			}
+
+			for (int i = 0; i < files.size(); i++) {
+				while (tasks.size() < files.size() && tasks.size() < i + window) {
+					File file = files.get(tasks.size());
+					tasks.add(pool.submit(() -> parseFile(file, monitor)));
+				}
+
+				ParsedXmlIndex part = join(tasks.get(i));
+				tasks.set(i, null);
+
+				synchronized (index) {
+					if (loaded > 0 && index.memoryUsed() + part.memoryUsed() > memoryLimit) {
+						break;
+					}
+					index.appendSubtrees(part);
+				}
+				loaded++;
+				bytesRead += files.get(i).length();
+				monitor.checkpoint(bytesRead);
+			}
+
+			synchronized (index) {
+				index.endElement();
+				index.trimToSize();
+			}
+			return loaded;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// The files named by command line arguments. A directory stands for the
+	// XML files in it, compressed or not, and a name with *, ? or [ for the
+	// matching files in its directory, both in name order.
+	public static List<File> expand(List<?> names) throws Exception {
+
+		List<File> files = new ArrayList<>();
+
+		for (Object value : names) {
+			String name = (String) value;
+			File file = new File(name);
+
+			if (file.isDirectory()) {
+				files.addAll(list(file.toPath(), "*.{xml,xml.gz,xml.xz,xml.zst}"));
+			} else if (!file.exists() && (name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0)) {
+				Path parent = file.getParentFile() != null ? file.getParentFile().toPath() : Paths.get(".");
+				files.addAll(list(parent, file.getName()));
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static List<File> list(Path directory, String glob) throws Exception {
+
+		List<File> files = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, glob)) {
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry)) {
+					files.add(entry.toFile());
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	// Index of one file below an element for the common root, which
+	// appendSubtrees() leaves out
+	private static ParsedXmlIndex parseFile(File file, LoadMonitor monitor) throws Exception {
+
+		ParsedXmlIndex part = new ParsedXmlIndex();
+		part.startElement(ROOT_TAG);
+		part.startElement(file.getName());
+
+		try (InputStream in = DecompressingInputStream.open(
+				new ProgressInputStream(new BufferedInputStream(new FileInputStream(file)), monitor))) {
+			StaxTreeLoader.parse(in, part);
+		} catch (CancellationException e) {
+			throw e;
+		} catch (Exception e) {
+			// Start over with only the file element and the error
+			part = new ParsedXmlIndex();
+			part.startElement(ROOT_TAG);
+			part.startElement(file.getName());
+			part.appendText("Could not be loaded: " + String.valueOf(e.getMessage()).replaceAll("\\s+", " "));
+		}
+
+		part.endElement();
+		part.endElement();
+		return part;
+	}
+
+	private static ParsedXmlIndex join(ForkJoinTask<ParsedXmlIndex> task) throws Exception {
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+}
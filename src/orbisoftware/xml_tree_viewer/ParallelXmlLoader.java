@@ -0,0 +1,256 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads a document on several threads. A byte level pre-scan of the mapped
+ * file finds where each child element of the root starts and ends; runs of
+ * those children are parsed as separate chunks on a ForkJoinPool, and the
+ * resulting subtrees are appended under the root in document order.
+ *
+ * Documents with a DOCTYPE (whose entities the chunks could not see), in an
+ * encoding the pre-scan cannot read, or with too few children to split are
+ * loaded on one thread.
+ */
+public class ParallelXmlLoader {
+
+	// Chunks per thread, so that uneven chunks still keep every thread busy
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	// Parsed chunks waiting to be appended are limited to this many per thread
+	private static final int PENDING_PER_THREAD = 2;
+
+	// Root element and the byte ranges of its children
+	static class Layout {
+
+		long rootStart;
+		long rootTagEnd;
+		String rootName;
+		int childCount;
+		long[] childStart = new long[256];
+		long[] childEnd = new long[256];
+
+		void addChild(long start, long end) {
+
+			if (childCount == childStart.length) {
+				childStart = Arrays.copyOf(childStart, childCount * 2);
+				childEnd = Arrays.copyOf(childEnd, childCount * 2);
+			}
+			childStart[childCount] = start;
+			childEnd[childCount] = end;
+			childCount++;
+		}
+	}
+
+	public static void load(File xmlFile, ParsedXmlIndex index, int threads, LoadMonitor monitor) throws Exception {
+
+		MappedXmlFile file;
+		Layout layout;
+
+		try {
+			file = MappedXmlFile.open(xmlFile);
+			layout = prescan(file, monitor);
+		} catch (IOException e) {
+			layout = null;
+			file = null;
+		}
+
+		if (layout == null || layout.childCount < 2) {
+			StaxTreeLoader.load(xmlFile, index, monitor);
+			return;
+		}
+
+		List<long[]> chunks = split(layout, threads * CHUNKS_PER_THREAD);
+		byte[] prefix = bytes(file, layout.rootStart, layout.rootTagEnd);
+		byte[] suffix = ("</" + layout.rootName + ">").getBytes(file.charset());
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<ParsedXmlIndex>> tasks = new ArrayList<>();
+			int window = threads * PENDING_PER_THREAD;
+
+			int root;
+			synchronized (index) {
+				root = index.startElement(layout.rootName);
+			}
+			monitor.checkpoint(layout.rootTagEnd);
+
+			for (int i = 0; i < chunks.size(); i++) {
+				while (tasks.size() < chunks.size() && tasks.size() < i + window) {
+					long[] chunk = chunks.get(tasks.size());
+					MappedXmlFile source = file;
+					tasks.add(pool.submit(() -> parseChunk(source, chunk, prefix, suffix, monitor)));
+				}
+
+				ParsedXmlIndex part = join(tasks.get(i));
+				tasks.set(i, null);
+
+				synchronized (index) {
+					index.appendSubtrees(part);
+					if (i == 0) {
+						// Each part starts with a copy of the root start tag
+						index.setAttributes(root, part, 0);
+					}
+				}
+				monitor.checkpoint(chunks.get(i)[1]);
+			}
+
+			synchronized (index) {
+				index.endElement();
+				index.trimToSize();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Wraps a run of children in a copy of the root start tag, so namespace
+	// declarations on the root still apply
+	static ParsedXmlIndex parseChunk(MappedXmlFile file, long[] chunk, byte[] prefix, byte[] suffix,
+			LoadMonitor monitor) throws Exception {
+
+		InputStream in = new SequenceInputStream(new ByteArrayInputStream(prefix),
+				new SequenceInputStream(file.openStream(chunk[0], chunk[1]), new ByteArrayInputStream(suffix)));
+
+		return StaxTreeLoader.parse(new ProgressInputStream(in, monitor), file.charset().name());
+	}
+
+	private static ParsedXmlIndex join(ForkJoinTask<ParsedXmlIndex> task) throws Exception {
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	// Groups consecutive children into chunks of about the same size
+	static List<long[]> split(Layout layout, int chunkCount) {
+
+		List<long[]> chunks = new ArrayList<>();
+		long total = layout.childEnd[layout.childCount - 1] - layout.childStart[0];
+		long target = Math.max(1, total / chunkCount);
+		int first = 0;
+
+		for (int i = 0; i < layout.childCount; i++) {
+			if (layout.childEnd[i] - layout.childStart[first] >= target || i == layout.childCount - 1) {
+				chunks.add(new long[] { layout.childStart[first], layout.childEnd[i] });
+				first = i + 1;
+			}
+		}
+
+		return chunks;
+	}
+
+	// Finds the root start tag and the byte range of each child of the root.
+	// Returns null when the document has a DOCTYPE or an empty root.
+	static Layout prescan(MappedXmlFile file, LoadMonitor monitor) throws IOException {
+
+		Layout layout = new Layout();
+		long length = file.length();
+		long position = 0;
+		long childStart = 0;
+		int depth = 0;
+		int tags = 0;
+
+		while (position < length) {
+			if (file.byteAt(position) != '<') {
+				position++;
+				continue;
+			}
+
+			byte next = position + 1 < length ? file.byteAt(position + 1) : 0;
+
+			if (next == '/') {
+				position = file.skipTo(position, (byte) '>') + 1;
+				depth--;
+				if (depth == 1) {
+					layout.addChild(childStart, position);
+				} else if (depth == 0) {
+					return layout;
+				}
+			} else if (next == '?') {
+				position = file.skipPast(position, "?>");
+			} else if (next == '!') {
+				if (file.startsWith(position, "<!--")) {
+					position = file.skipPast(position, "-->");
+				} else if (file.startsWith(position, "<![CDATA[")) {
+					position = file.skipPast(position, "]]>");
+				} else {
+					return null;
+				}
+			} else {
+				if (++tags % LoadMonitor.BATCH_SIZE == 0 && monitor.isCancelled()) {
+					throw new CancellationException("Loading cancelled");
+				}
+
+				long tagEnd = file.skipTag(position);
+				if (tagEnd < 0) {
+					throw new IOException("Unterminated tag at end of file");
+				}
+
+				boolean empty = file.byteAt(tagEnd - 2) == '/';
+				if (depth == 0) {
+					if (empty) {
+						return null;
+					}
+					long nameEnd = position + 1;
+					while (!MappedXmlFile.isNameEnd(file.byteAt(nameEnd))) {
+						nameEnd++;
+					}
+					layout.rootStart = position;
+					layout.rootTagEnd = tagEnd;
+					layout.rootName = file.decode(position + 1, nameEnd);
+				} else if (depth == 1) {
+					childStart = position;
+					if (empty) {
+						layout.addChild(position, tagEnd);
+					}
+				}
+
+				if (!empty) {
+					depth++;
+				}
+				position = tagEnd;
+			}
+		}
+
+		throw new IOException("Unexpected end of file, the document is incomplete");
+	}
+
+	static byte[] bytes(MappedXmlFile file, long from, long to) throws IOException {
+		return file.openStream(from, to).readAllBytes();
+	}
+}
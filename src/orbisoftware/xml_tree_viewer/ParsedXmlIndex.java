@@ -0,0 +1,659 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Element index filled from parser events. Each distinct tag name is kept
+ * once and elements refer to it by number, and leaf text is stored in a
+ * shared char pool addressed by offset and length. While loading, short
+ * leaf values equal to one already in the pool point to the stored copy,
+ * as configuration files repeat the same values many times.
+ *
+ * Attributes are kept in a separate table, a run of entries per element
+ * holding the name as a tag number and the value as a range of its own
+ * char pool. Attribute strings are only created when a label is shown.
+ *
+ * The index is filled through startElement/addAttribute/appendText/
+ * endElement, in the order a streaming parser reports them.
+ */
+public class ParsedXmlIndex extends XmlIndex {
+
+	// Longest leaf value looked up in the symbol table, longer text is
+	// rarely repeated
+	private static final int MAX_SHARED_LENGTH = 64;
+
+	private int[] tagId = new int[INITIAL_CAPACITY];
+	private String[] tags = new String[64];
+	private int tagCount;
+	private final SymbolTable tagSymbols = new SymbolTable();
+	private char[] tagPool = new char[256];
+	private int tagPoolSize;
+
+	private int[] textOffset = new int[INITIAL_CAPACITY];
+	private int[] textLength = new int[INITIAL_CAPACITY];
+
+	private char[] textPool = new char[INITIAL_CAPACITY * 16];
+	private int textPoolSize;
+
+	// Pool size after loading or the last compaction, replaced subtrees
+	// leave text behind that is dropped once the pool has doubled since
+	private int compactedPoolSize;
+
+	// Distinct short values while loading, released by trimToSize(), and
+	// the total length of the leaf text of all elements
+	private SymbolTable textSymbols = new SymbolTable();
+	private int sharedValueCount;
+	private long textChars;
+
+	// Run of entries in the attribute table of each element
+	private int[] firstAttribute = new int[INITIAL_CAPACITY];
+	private int[] attributeCounts = new int[INITIAL_CAPACITY];
+
+	// Attribute table, the name as a tag number and the value as a range
+	// of the value pool, which shares short values like the text pool
+	private int[] attributeName = new int[INITIAL_CAPACITY / 4];
+	private int[] valueOffset = new int[INITIAL_CAPACITY / 4];
+	private int[] valueLength = new int[INITIAL_CAPACITY / 4];
+	private int attributeTableSize;
+	private char[] valuePool = new char[INITIAL_CAPACITY];
+	private int valuePoolSize;
+	private SymbolTable valueSymbols = new SymbolTable();
+
+	// Table size after loading or the last compaction, entries of replaced
+	// subtrees are dropped once the table has doubled since
+	private int compactedTableSize;
+
+	// Build state
+	private boolean collectingText;
+	private final StringBuilder text = new StringBuilder();
+
+	@Override
+	public String tagName(int id) {
+		return tags[tagId[id]];
+	}
+
+	@Override
+	public String leafText(int id) {
+
+		if (textLength[id] == 0) {
+			return null;
+		}
+		return new String(textPool, textOffset[id], textLength[id]);
+	}
+
+	@Override
+	public int attributeCount(int id) {
+		return attributeCounts[id];
+	}
+
+	@Override
+	public String attributeName(int id, int n) {
+		return tags[attributeName[attribute(id, n)]];
+	}
+
+	@Override
+	public String attributeValue(int id, int n) {
+
+		int entry = attribute(id, n);
+		return new String(valuePool, valueOffset[entry], valueLength[entry]);
+	}
+
+	public int startElement(String name) {
+
+		int id = openElement();
+		tagId[id] = internTag(name);
+		textLength[id] = 0;
+		firstAttribute[id] = attributeTableSize;
+		attributeCounts[id] = 0;
+
+		// Text is only kept for elements without child elements, so the
+		// parent's pending text can be dropped here
+		collectingText = true;
+		text.setLength(0);
+
+		return id;
+	}
+
+	// Adds an attribute to the element just started, before its content
+	public void addAttribute(String name, String value) {
+
+		int length = value.length();
+		ensureValueCapacity(length);
+		value.getChars(0, length, valuePool, valuePoolSize);
+		addAttributeEntry(internTag(name), length);
+		attributeCounts[current]++;
+	}
+
+	public void appendText(char[] chars, int start, int length) {
+
+		if (collectingText) {
+			text.append(chars, start, length);
+		}
+	}
+
+	public void appendText(String chars) {
+
+		if (collectingText) {
+			text.append(chars);
+		}
+	}
+
+	public void endElement() {
+
+		if (collectingText) {
+			storeText(current);
+		}
+
+		closeElement();
+		collectingText = false;
+		text.setLength(0);
+	}
+
+	// Appends the elements below the root of a separately parsed part of
+	// the document under the innermost open element
+	public void appendSubtrees(ParsedXmlIndex part) {
+
+		copyPart(part, super.appendSubtrees(part));
+
+		collectingText = false;
+		text.setLength(0);
+	}
+
+	// Replaces the child subtrees of an element between two ids with the
+	// elements below the root of a separately parsed part of the document,
+	// see XmlIndex.replaceSubtrees(). The text of the replaced elements
+	// stays in the pool until it is compacted.
+	public void replaceSubtrees(int parentId, int from, int to, ParsedXmlIndex part) {
+
+		for (int id = from; id < to; id++) {
+			textChars -= textLength[id];
+		}
+
+		copyPart(part, super.replaceSubtrees(parentId, from, to, part));
+
+		if (textPoolSize > compactedPoolSize * 2L + INITIAL_CAPACITY) {
+			compactTextPool();
+		}
+		if (attributeTableSize > compactedTableSize * 2L + INITIAL_CAPACITY) {
+			compactAttributes();
+		}
+	}
+
+	// Gives an element another tag name
+	public void setTagName(int id, String name) {
+		tagId[id] = internTag(name);
+	}
+
+	// Gives an element the attributes of an element of another index. The
+	// entries it had stay in the table until it is compacted.
+	public void setAttributes(int id, ParsedXmlIndex part, int partId) {
+
+		int first = attributeTableSize;
+		int end = part.firstAttribute[partId] + part.attributeCounts[partId];
+		for (int entry = part.firstAttribute[partId]; entry < end; entry++) {
+			copyAttribute(part, entry, internTag(part.tags[part.attributeName[entry]]));
+		}
+		firstAttribute[id] = first;
+		attributeCounts[id] = part.attributeCounts[partId];
+	}
+
+	// Distinct tag names and leaf values kept once while loading
+	public int uniqueStrings() {
+		return tagCount + (textSymbols != null ? textSymbols.size() : sharedValueCount);
+	}
+
+	@Override
+	public long memoryUsed() {
+		return super.memoryUsed() + (long) tagId.length * 5 * Integer.BYTES + (long) textPool.length * Character.BYTES
+				+ (long) attributeName.length * 3 * Integer.BYTES + (long) valuePool.length * Character.BYTES;
+	}
+
+	// Bytes of leaf text not stored because an equal value was shared
+	public long bytesSaved() {
+		return (textChars - textPoolSize) * Character.BYTES;
+	}
+
+	@Override
+	void writeSnapshot(SnapshotWriter out) throws IOException {
+
+		super.writeSnapshot(out);
+		out.writeInts(tagId, size);
+		out.writeInt(tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			out.writeString(tags[i]);
+		}
+
+		out.writeInts(textOffset, size);
+		out.writeInts(textLength, size);
+		out.writeInt(textPoolSize);
+		out.writeChars(textPool, textPoolSize);
+		out.writeInt(uniqueStrings() - tagCount);
+		out.writeLong(textChars);
+
+		out.writeInts(firstAttribute, size);
+		out.writeInts(attributeCounts, size);
+		out.writeInt(attributeTableSize);
+		out.writeInts(attributeName, attributeTableSize);
+		out.writeInts(valueOffset, attributeTableSize);
+		out.writeInts(valueLength, attributeTableSize);
+		out.writeInt(valuePoolSize);
+		out.writeChars(valuePool, valuePoolSize);
+	}
+
+	// The tag table is only rebuilt when subtrees are replaced later
+	@Override
+	void readSnapshot(SnapshotReader in) throws IOException {
+
+		super.readSnapshot(in);
+		int[] tagIds = in.readInts(size);
+		int count = in.readInt();
+		String[] tagNames = new String[Math.max(count, 1)];
+		for (int i = 0; i < count; i++) {
+			tagNames[i] = in.readString();
+		}
+
+		int[] offsets = in.readInts(size);
+		int[] lengths = in.readInts(size);
+		int poolSize = in.readInt();
+		char[] pool = in.readChars(poolSize);
+
+		for (int id = 0; id < size; id++) {
+			if (tagIds[id] < 0 || tagIds[id] >= count || offsets[id] < 0 || lengths[id] < 0
+					|| (long) offsets[id] + lengths[id] > poolSize) {
+				throw new IOException("Snapshot is damaged");
+			}
+		}
+
+		tagId = tagIds;
+		tags = tagNames;
+		tagCount = count;
+		textOffset = offsets;
+		textLength = lengths;
+		textPool = pool;
+		textPoolSize = poolSize;
+		compactedPoolSize = poolSize;
+		textSymbols = null;
+		sharedValueCount = in.readInt();
+		textChars = in.readLong();
+
+		int[] firsts = in.readInts(size);
+		int[] counts = in.readInts(size);
+		int tableSize = in.readInt();
+		int[] names = in.readInts(tableSize);
+		int[] valueOffsets = in.readInts(tableSize);
+		int[] valueLengths = in.readInts(tableSize);
+		int valueSize = in.readInt();
+		char[] values = in.readChars(valueSize);
+
+		for (int id = 0; id < size; id++) {
+			if (firsts[id] < 0 || counts[id] < 0 || (long) firsts[id] + counts[id] > tableSize) {
+				throw new IOException("Snapshot is damaged");
+			}
+		}
+		for (int entry = 0; entry < tableSize; entry++) {
+			if (names[entry] < 0 || names[entry] >= count || valueOffsets[entry] < 0 || valueLengths[entry] < 0
+					|| (long) valueOffsets[entry] + valueLengths[entry] > valueSize) {
+				throw new IOException("Snapshot is damaged");
+			}
+		}
+
+		firstAttribute = firsts;
+		attributeCounts = counts;
+		attributeName = names;
+		valueOffset = valueOffsets;
+		valueLength = valueLengths;
+		attributeTableSize = tableSize;
+		compactedTableSize = tableSize;
+		valuePool = values;
+		valuePoolSize = valueSize;
+		valueSymbols = null;
+	}
+
+	// Also releases the value table, the document is complete
+	@Override
+	public void trimToSize() {
+
+		super.trimToSize();
+		textPool = Arrays.copyOf(textPool, textPoolSize);
+		compactedPoolSize = textPoolSize;
+
+		if (textSymbols != null) {
+			sharedValueCount = textSymbols.size();
+			textSymbols = null;
+		}
+
+		attributeName = Arrays.copyOf(attributeName, attributeTableSize);
+		valueOffset = Arrays.copyOf(valueOffset, attributeTableSize);
+		valueLength = Arrays.copyOf(valueLength, attributeTableSize);
+		valuePool = Arrays.copyOf(valuePool, valuePoolSize);
+		compactedTableSize = attributeTableSize;
+		valueSymbols = null;
+	}
+
+	@Override
+	protected void grow(int capacity) {
+
+		super.grow(capacity);
+		tagId = Arrays.copyOf(tagId, capacity);
+		textOffset = Arrays.copyOf(textOffset, capacity);
+		textLength = Arrays.copyOf(textLength, capacity);
+		firstAttribute = Arrays.copyOf(firstAttribute, capacity);
+		attributeCounts = Arrays.copyOf(attributeCounts, capacity);
+	}
+
+	// Appends the attributes straight from the value pool
+	@Override
+	protected void appendAttributes(int id, StringBuilder buffer, int maxValueLength) {
+
+		int end = firstAttribute[id] + attributeCounts[id];
+		for (int entry = firstAttribute[id]; entry < end; entry++) {
+			buffer.append(' ').append(tags[attributeName[entry]]).append("=\"");
+			buffer.append(valuePool, valueOffset[entry], Math.min(valueLength[entry], maxValueLength));
+			if (valueLength[entry] > maxValueLength) {
+				buffer.append("...");
+			}
+			buffer.append('"');
+		}
+	}
+
+	@Override
+	protected void appendText(int id, StringBuilder buffer, int maxTextLength) {
+
+		if (textLength[id] > 0) {
+			buffer.append(" = ").append(textPool, textOffset[id], Math.min(textLength[id], maxTextLength));
+			if (textLength[id] > maxTextLength) {
+				buffer.append("...");
+			}
+		}
+	}
+
+	@Override
+	protected void moveElements(int from, int to, int count) {
+
+		super.moveElements(from, to, count);
+		System.arraycopy(tagId, from, tagId, to, count);
+		System.arraycopy(textOffset, from, textOffset, to, count);
+		System.arraycopy(textLength, from, textLength, to, count);
+		System.arraycopy(firstAttribute, from, firstAttribute, to, count);
+		System.arraycopy(attributeCounts, from, attributeCounts, to, count);
+	}
+
+	// Fills the tags and text of the elements of a part placed at an offset
+	private void copyPart(ParsedXmlIndex part, int offset) {
+
+		int[] partTags = new int[part.tagCount];
+		for (int i = 0; i < part.tagCount; i++) {
+			partTags[i] = internTag(part.tags[i]);
+		}
+
+		// Pool offset of each shared value of the part once stored here
+		int[] sharedOffsets = new int[part.textSymbols.size()];
+		Arrays.fill(sharedOffsets, -1);
+
+		for (int partId = 1; partId < part.size; partId++) {
+			int id = partId + offset;
+			int length = part.textLength[partId];
+			int partOffset = part.textOffset[partId];
+
+			tagId[id] = partTags[part.tagId[partId]];
+			textLength[id] = length;
+
+			firstAttribute[id] = attributeTableSize;
+			attributeCounts[id] = part.attributeCounts[partId];
+			int partEnd = part.firstAttribute[partId] + part.attributeCounts[partId];
+			for (int entry = part.firstAttribute[partId]; entry < partEnd; entry++) {
+				copyAttribute(part, entry, partTags[part.attributeName[entry]]);
+			}
+
+			if (length == 0) {
+				continue;
+			}
+
+			int symbol = length <= MAX_SHARED_LENGTH ? part.textSymbols.symbolAt(partOffset) : -1;
+			if (symbol >= 0 && sharedOffsets[symbol] >= 0) {
+				textOffset[id] = sharedOffsets[symbol];
+				textChars += length;
+				continue;
+			}
+
+			ensurePoolCapacity(length);
+			System.arraycopy(part.textPool, partOffset, textPool, textPoolSize, length);
+			textOffset[id] = shareText(length);
+
+			if (symbol >= 0) {
+				sharedOffsets[symbol] = textOffset[id];
+			}
+		}
+	}
+
+	// Copies the text still referenced to a new pool. Shared values have
+	// the same offset and length, so each range is copied once.
+	private void compactTextPool() {
+
+		long[] ranges = new long[size];
+		int count = 0;
+		for (int id = 0; id < size; id++) {
+			if (textLength[id] > 0) {
+				ranges[count++] = (long) textOffset[id] << 32 | textLength[id];
+			}
+		}
+		Arrays.sort(ranges, 0, count);
+
+		char[] pool = new char[textPoolSize];
+		int poolSize = 0;
+		int unique = 0;
+		int[] newOffsets = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			if (unique > 0 && ranges[i] == ranges[unique - 1]) {
+				continue;
+			}
+			int offset = (int) (ranges[i] >>> 32);
+			int length = (int) ranges[i];
+			System.arraycopy(textPool, offset, pool, poolSize, length);
+			ranges[unique] = ranges[i];
+			newOffsets[unique++] = poolSize;
+			poolSize += length;
+		}
+
+		for (int id = 0; id < size; id++) {
+			if (textLength[id] > 0) {
+				long range = (long) textOffset[id] << 32 | textLength[id];
+				textOffset[id] = newOffsets[Arrays.binarySearch(ranges, 0, unique, range)];
+			}
+		}
+
+		textPool = pool;
+		textPoolSize = poolSize;
+		compactedPoolSize = poolSize;
+
+		if (textSymbols != null) {
+			sharedValueCount = textSymbols.size();
+			textSymbols = null;
+		}
+	}
+
+	// Copies the attributes still referenced to a new table, in element
+	// order. Short values are shared again as they are copied.
+	private void compactAttributes() {
+
+		int[] names = attributeName;
+		int[] offsets = valueOffset;
+		int[] lengths = valueLength;
+		char[] pool = valuePool;
+		boolean loading = valueSymbols != null;
+
+		int live = 0;
+		for (int id = 0; id < size; id++) {
+			live += attributeCounts[id];
+		}
+
+		attributeName = new int[Math.max(live, 1)];
+		valueOffset = new int[attributeName.length];
+		valueLength = new int[attributeName.length];
+		attributeTableSize = 0;
+		valuePool = new char[valuePoolSize];
+		valuePoolSize = 0;
+		valueSymbols = new SymbolTable();
+
+		for (int id = 0; id < size; id++) {
+			int end = firstAttribute[id] + attributeCounts[id];
+			firstAttribute[id] = attributeTableSize;
+			for (int entry = end - attributeCounts[id]; entry < end; entry++) {
+				System.arraycopy(pool, offsets[entry], valuePool, valuePoolSize, lengths[entry]);
+				addAttributeEntry(names[entry], lengths[entry]);
+			}
+		}
+
+		valuePool = Arrays.copyOf(valuePool, valuePoolSize);
+		compactedTableSize = attributeTableSize;
+
+		// Values are only looked up while loading
+		if (!loading) {
+			valueSymbols = null;
+		}
+	}
+
+	// Adds an entry of another index with the name as a tag number here
+	private void copyAttribute(ParsedXmlIndex part, int entry, int name) {
+
+		int length = part.valueLength[entry];
+		ensureValueCapacity(length);
+		System.arraycopy(part.valuePool, part.valueOffset[entry], valuePool, valuePoolSize, length);
+		addAttributeEntry(name, length);
+	}
+
+	// Adds an entry for the value just written at the end of the value
+	// pool, keeping it there unless an equal value is already stored
+	private void addAttributeEntry(int name, int length) {
+
+		if (attributeTableSize == attributeName.length) {
+			int capacity = Math.max(INITIAL_CAPACITY / 4, attributeTableSize + (attributeTableSize >> 1));
+			attributeName = Arrays.copyOf(attributeName, capacity);
+			valueOffset = Arrays.copyOf(valueOffset, capacity);
+			valueLength = Arrays.copyOf(valueLength, capacity);
+		}
+
+		int offset = valuePoolSize;
+		if (length > 0 && length <= MAX_SHARED_LENGTH && valueSymbols != null) {
+			int symbol = valueSymbols.intern(valuePool, offset, length);
+			offset = valueSymbols.offset(symbol);
+		}
+		if (offset == valuePoolSize) {
+			valuePoolSize += length;
+		}
+
+		int entry = attributeTableSize++;
+		attributeName[entry] = name;
+		valueOffset[entry] = offset;
+		valueLength[entry] = length;
+	}
+
+	private int attribute(int id, int n) {
+
+		if (n < 0 || n >= attributeCounts[id]) {
+			throw new IndexOutOfBoundsException("Attribute " + n + " of element " + id);
+		}
+		return firstAttribute[id] + n;
+	}
+
+	private void ensureValueCapacity(int length) {
+
+		if (valuePoolSize + length > valuePool.length) {
+			valuePool = Arrays.copyOf(valuePool, Math.max(valuePool.length * 2, valuePoolSize + length));
+		}
+	}
+
+	private int internTag(String name) {
+
+		// A snapshot does not keep the tag table
+		if (tagSymbols.size() < tagCount) {
+			int count = tagCount;
+			tagCount = 0;
+			for (int i = 0; i < count; i++) {
+				internTag(tags[i]);
+			}
+		}
+
+		int length = name.length();
+		if (tagPoolSize + length > tagPool.length) {
+			tagPool = Arrays.copyOf(tagPool, Math.max(tagPool.length * 2, tagPoolSize + length));
+		}
+		name.getChars(0, length, tagPool, tagPoolSize);
+
+		int symbol = tagSymbols.intern(tagPool, tagPoolSize, length);
+		if (symbol == tagCount) {
+			if (tagCount == tags.length) {
+				tags = Arrays.copyOf(tags, tagCount * 2);
+			}
+			tags[tagCount++] = name;
+			tagPoolSize += length;
+		}
+		return symbol;
+	}
+
+	// Keeps the text just written at the end of the pool, unless an equal
+	// value is already stored. Returns the offset of the stored copy.
+	private int shareText(int length) {
+
+		int offset = textPoolSize;
+		textChars += length;
+
+		// Empty text takes no room and would share its offset with the
+		// next symbol
+		if (length > 0 && length <= MAX_SHARED_LENGTH && textSymbols != null) {
+			int symbol = textSymbols.intern(textPool, offset, length);
+			if (textSymbols.offset(symbol) != offset) {
+				return textSymbols.offset(symbol);
+			}
+		}
+
+		textPoolSize += length;
+		return offset;
+	}
+
+	private void ensurePoolCapacity(int length) {
+
+		if (textPoolSize + length > textPool.length) {
+			textPool = Arrays.copyOf(textPool, Math.max(textPool.length * 2, textPoolSize + length));
+		}
+	}
+
+	private void storeText(int id) {
+
+		int start = 0;
+		int end = text.length();
+
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		int length = end - start;
+		ensurePoolCapacity(length);
+
+		text.getChars(start, end, textPool, textPoolSize);
+		textOffset[id] = shareText(length);
+		textLength[id] = length;
+	}
+}
@@ -0,0 +1,631 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Query in a subset of XPath, compiled against the tag index. Supported:
+ *
+ *   /a/b          path from the root element
+ *   //a, a//b     any descendant; a path without a leading '/' matches anywhere
+ *   *             any element
+ *   [name]        has a child element 'name'
+ *   [name='X']    has a child 'name' whose text is X, also != with any child
+ *   [.='X']       the text of the element itself, text() may be used for '.'
+ *   [contains(name,'X')], [starts-with(name,'X')]
+ *   [2]           position among the siblings matched by the step
+ *   and, or, not(...) and parentheses inside predicates
+ *
+ * Element text is the trimmed leaf text shown in the tree, elements with
+ * child elements have none. Candidates are taken from the elements of the
+ * tag of the last step and checked upwards through their ancestors.
+ * Candidates come in document order and share most of their ancestors, so
+ * each step remembers its result for the ancestors of the last candidate,
+ * and a position predicate finds its element once per parent.
+ */
+public class PathQuery implements ElementQuery {
+
+	private interface Condition {
+		boolean test(int id);
+	}
+
+	private final class NameTest {
+
+		// Null matches any element
+		private final String name;
+		private int tagId = -1;
+
+		private NameTest(String name) {
+			this.name = name;
+			nameTests.add(this);
+		}
+
+		private boolean matches(int id) {
+
+			if (name == null) {
+				return true;
+			}
+			if (tagIndex.isDropped()) {
+				return index.tagName(id).equals(name);
+			}
+			return tagIndex.tagOf(id) == tagId;
+		}
+	}
+
+	private static final class Step {
+
+		private boolean descendant;
+		private NameTest nameTest;
+		private final List<Condition> predicates = new ArrayList<>();
+
+		// Results of matches() by depth, for the elements on one path
+		private int[] cachedIds = new int[0];
+		private boolean[] cachedResults = new boolean[0];
+
+		private void clearCache() {
+			Arrays.fill(cachedIds, -1);
+		}
+
+		private void cache(int depth, int id, boolean result) {
+
+			if (depth >= cachedIds.length) {
+				int length = Math.max(16, depth * 2);
+				int from = cachedIds.length;
+				cachedIds = Arrays.copyOf(cachedIds, length);
+				cachedResults = Arrays.copyOf(cachedResults, length);
+				Arrays.fill(cachedIds, from, length, -1);
+			}
+			cachedIds[depth] = id;
+			cachedResults[depth] = result;
+		}
+	}
+
+	// Matches the element at a position among its siblings that pass the
+	// name test and the predicates before this one
+	private final class PositionCondition implements Condition {
+
+		private final Step step;
+		private final int predicateCount;
+		private final int target;
+
+		// By depth, the parent whose children were counted last and its
+		// child at the position, for the parents on one path
+		private int[] countedParents = new int[0];
+		private int[] targetChildren = new int[0];
+
+		private PositionCondition(Step step, int target) {
+
+			this.step = step;
+			this.predicateCount = step.predicates.size();
+			this.target = target;
+			positionConditions.add(this);
+		}
+
+		@Override
+		public boolean test(int id) {
+
+			int parent = index.parent(id);
+			if (parent < 0) {
+				return target == 1;
+			}
+
+			int depth = index.depth(parent);
+			if (depth < countedParents.length && countedParents[depth] == parent) {
+				return id == targetChildren[depth];
+			}
+			return id == count(parent, depth);
+		}
+
+		private void clearCache() {
+			Arrays.fill(countedParents, -1);
+		}
+
+		// One pass over the children, up to the one at the position
+		private int count(int parent, int depth) {
+
+			int count = 0;
+			int child = index.firstChild(parent);
+			while (child >= 0) {
+				if (matchesStep(child, step, predicateCount) && ++count == target) {
+					break;
+				}
+				child = index.nextSibling(child);
+			}
+
+			// Children that are complete keep their results, while the
+			// parent loads the position may only be filled later
+			boolean complete = child >= 0 ? !index.isOpen(child) : !index.isOpen(parent);
+			if (complete) {
+				if (depth >= countedParents.length) {
+					int length = Math.max(16, depth * 2);
+					int from = countedParents.length;
+					countedParents = Arrays.copyOf(countedParents, length);
+					targetChildren = Arrays.copyOf(targetChildren, length);
+					Arrays.fill(countedParents, from, length, -1);
+				}
+				countedParents[depth] = parent;
+				targetChildren[depth] = child;
+			}
+			return child;
+		}
+	}
+
+	private final XmlIndex index;
+	private final TagIndex tagIndex;
+	private final String expression;
+	private int position;
+
+	private final List<Step> steps = new ArrayList<>();
+	private final List<NameTest> nameTests = new ArrayList<>();
+	private final List<PositionCondition> positionConditions = new ArrayList<>();
+
+	// Parses the expression, throws IllegalArgumentException if it is not
+	// in the supported subset
+	public PathQuery(XmlIndex index, TagIndex tagIndex, String expression) {
+
+		this.index = index;
+		this.tagIndex = tagIndex;
+		this.expression = expression;
+		parsePath();
+	}
+
+	@Override
+	public IntList prepare() {
+
+		tagIndex.update();
+
+		// The index may have changed since the last search
+		for (Step step : steps) {
+			step.clearCache();
+		}
+		for (PositionCondition condition : positionConditions) {
+			condition.clearCache();
+		}
+
+		if (!tagIndex.isDropped()) {
+			for (NameTest nameTest : nameTests) {
+				nameTest.tagId = nameTest.name != null ? tagIndex.tagId(nameTest.name) : -1;
+			}
+		}
+
+		NameTest last = steps.get(steps.size() - 1).nameTest;
+		if (tagIndex.isDropped() || last.name == null) {
+			return null;
+		}
+
+		IntList found = new IntList();
+		if (last.tagId < 0) {
+			return found;
+		}
+
+		IntList candidates = tagIndex.elements(last.tagId);
+		if (candidates.size() > index.size() / XmlIndex.SORT_FRACTION) {
+			return null;
+		}
+
+		for (int i = 0; i < candidates.size(); i++) {
+			if (matches(candidates.get(i))) {
+				found.add(candidates.get(i));
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public boolean matches(int id) {
+		return matches(id, steps.size() - 1);
+	}
+
+	// Whether the query must see all children of the root at once: a
+	// predicate on a step that may match the root, or a position among
+	// the children of the root. Only the first step may match the root.
+	public boolean needsAllRootChildren(String rootName) {
+
+		Step first = steps.get(0);
+		boolean firstMayBeRoot = first.nameTest.name == null || first.nameTest.name.equals(rootName);
+		if (firstMayBeRoot && !first.predicates.isEmpty()) {
+			return true;
+		}
+
+		for (int i = 0; i < steps.size() && i < 2; i++) {
+			Step step = steps.get(i);
+			boolean mayBeRootChild = i == 0 ? step.descendant : firstMayBeRoot;
+			if (mayBeRootChild) {
+				for (Condition predicate : step.predicates) {
+					if (predicate instanceof PositionCondition) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	// Whether the element matches a step, with its ancestors matching the
+	// steps before it. The result for an ancestor is kept for the next
+	// candidate once the document is complete, while it loads an ancestor
+	// may still get the children its predicates ask for.
+	private boolean matches(int id, int stepIndex) {
+
+		Step step = steps.get(stepIndex);
+		if (stepIndex == steps.size() - 1) {
+			return matchesPath(id, stepIndex, step);
+		}
+
+		int depth = index.depth(id);
+		if (depth < step.cachedIds.length && step.cachedIds[depth] == id) {
+			return step.cachedResults[depth];
+		}
+
+		boolean result = matchesPath(id, stepIndex, step);
+		if (!index.isOpen(0)) {
+			step.cache(depth, id, result);
+		}
+		return result;
+	}
+
+	private boolean matchesPath(int id, int stepIndex, Step step) {
+
+		if (!matchesStep(id, step, step.predicates.size())) {
+			return false;
+		}
+
+		int parent = index.parent(id);
+
+		if (stepIndex == 0) {
+			return step.descendant || parent < 0;
+		}
+
+		if (step.descendant) {
+			for (int ancestor = parent; ancestor >= 0; ancestor = index.parent(ancestor)) {
+				if (matches(ancestor, stepIndex - 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return parent >= 0 && matches(parent, stepIndex - 1);
+	}
+
+	// Name test and the first predicateCount predicates of a step
+	private boolean matchesStep(int id, Step step, int predicateCount) {
+
+		if (!step.nameTest.matches(id)) {
+			return false;
+		}
+		for (int i = 0; i < predicateCount; i++) {
+			if (!step.predicates.get(i).test(id)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Leaf text of an element, empty if it has none
+	private String text(int id) {
+
+		String text = index.leafText(id);
+		return text != null ? text : "";
+	}
+
+	// Applies a test to the text of the element itself (child is null) or
+	// of any of its children matching the name test
+	private boolean anyText(int id, NameTest child, Predicate<String> test) {
+
+		if (child == null) {
+			return test.test(text(id));
+		}
+
+		for (int c = index.firstChild(id); c >= 0; c = index.nextSibling(c)) {
+			if (child.matches(c) && test.test(text(c))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void parsePath() {
+
+		skipSpace();
+		boolean descendant = true;
+
+		if (peek('/')) {
+			position++;
+			descendant = peek('/');
+			if (descendant) {
+				position++;
+			}
+		}
+
+		while (true) {
+			Step step = new Step();
+			step.descendant = descendant;
+			steps.add(step);
+			parseStep(step);
+
+			skipSpace();
+			if (position == expression.length()) {
+				return;
+			}
+			expect('/');
+			descendant = peek('/');
+			if (descendant) {
+				position++;
+			}
+		}
+	}
+
+	private void parseStep(Step step) {
+
+		skipSpace();
+		if (peek('*')) {
+			position++;
+			step.nameTest = new NameTest(null);
+		} else if (peek('@')) {
+			throw error("Attributes are not supported");
+		} else {
+			step.nameTest = new NameTest(parseName("an element name"));
+		}
+
+		skipSpace();
+		while (peek('[')) {
+			position++;
+			skipSpace();
+
+			if (position < expression.length() && Character.isDigit(expression.charAt(position))) {
+				step.predicates.add(new PositionCondition(step, parseNumber()));
+			} else {
+				step.predicates.add(parseOr());
+			}
+
+			skipSpace();
+			expect(']');
+			skipSpace();
+		}
+	}
+
+	private Condition parseOr() {
+
+		Condition condition = parseAnd();
+		while (keyword("or")) {
+			Condition left = condition;
+			Condition right = parseAnd();
+			condition = id -> left.test(id) || right.test(id);
+		}
+		return condition;
+	}
+
+	private Condition parseAnd() {
+
+		Condition condition = parseUnary();
+		while (keyword("and")) {
+			Condition left = condition;
+			Condition right = parseUnary();
+			condition = id -> left.test(id) && right.test(id);
+		}
+		return condition;
+	}
+
+	private Condition parseUnary() {
+
+		skipSpace();
+
+		if (peek('(')) {
+			position++;
+			Condition condition = parseOr();
+			skipSpace();
+			expect(')');
+			return condition;
+		}
+
+		if (peek('@')) {
+			throw error("Attributes are not supported");
+		}
+
+		int start = position;
+		String name = peek('.') ? null : parseName("a child name, '.' or a function");
+		skipSpace();
+
+		if (name != null && peek('(')) {
+			position++;
+			switch (name) {
+			case "text":
+				skipSpace();
+				expect(')');
+				return parseComparison(null);
+			case "not": {
+				Condition condition = parseOr();
+				skipSpace();
+				expect(')');
+				return id -> !condition.test(id);
+			}
+			case "contains":
+			case "starts-with": {
+				NameTest child = parseOperand();
+				skipSpace();
+				expect(',');
+				String value = parseLiteral();
+				skipSpace();
+				expect(')');
+				if (name.equals("contains")) {
+					return id -> anyText(id, child, text -> text.contains(value));
+				}
+				return id -> anyText(id, child, text -> text.startsWith(value));
+			}
+			default:
+				position = start;
+				throw error("Unsupported function " + name + "()");
+			}
+		}
+
+		if (name == null) {
+			position++;
+		}
+		return parseComparison(name != null ? new NameTest(name) : null);
+	}
+
+	// Comparison of the text of the element (child is null) or of a child,
+	// or only the existence of the child when no operator follows
+	private Condition parseComparison(NameTest child) {
+
+		skipSpace();
+
+		if (peek('=') || peek('!')) {
+			boolean equal = peek('=');
+			position++;
+			if (!equal) {
+				expect('=');
+			}
+			String value = parseLiteral();
+			if (equal) {
+				return id -> anyText(id, child, text -> text.equals(value));
+			}
+			return id -> anyText(id, child, text -> !text.equals(value));
+		}
+
+		if (child == null) {
+			return id -> true;
+		}
+		return id -> anyText(id, child, text -> true);
+	}
+
+	// A child name, or null for '.' and text()
+	private NameTest parseOperand() {
+
+		skipSpace();
+		if (peek('.')) {
+			position++;
+			return null;
+		}
+
+		String name = parseName("a child name, '.' or text()");
+		skipSpace();
+		if (name.equals("text") && peek('(')) {
+			position++;
+			skipSpace();
+			expect(')');
+			return null;
+		}
+		return new NameTest(name);
+	}
+
+	private String parseLiteral() {
+
+		skipSpace();
+
+		if (peek('\'') || peek('"')) {
+			char quote = expression.charAt(position);
+			int end = expression.indexOf(quote, position + 1);
+			if (end < 0) {
+				throw error("Unterminated string");
+			}
+			String value = expression.substring(position + 1, end);
+			position = end + 1;
+			return value;
+		}
+
+		int start = position;
+		while (position < expression.length()
+				&& (Character.isDigit(expression.charAt(position)) || expression.charAt(position) == '.'
+						|| (position == start && expression.charAt(position) == '-'))) {
+			position++;
+		}
+		if (position == start) {
+			throw error("Expected a quoted string or a number");
+		}
+		return expression.substring(start, position);
+	}
+
+	private int parseNumber() {
+
+		int start = position;
+		while (position < expression.length() && Character.isDigit(expression.charAt(position))) {
+			position++;
+		}
+		try {
+			return Integer.parseInt(expression.substring(start, position));
+		} catch (NumberFormatException e) {
+			position = start;
+			throw error("Position out of range");
+		}
+	}
+
+	private String parseName(String expected) {
+
+		int start = position;
+		while (position < expression.length() && isNameChar(expression.charAt(position), position == start)) {
+			position++;
+		}
+		if (position == start) {
+			throw error("Expected " + expected);
+		}
+		return expression.substring(start, position);
+	}
+
+	private static boolean isNameChar(char c, boolean first) {
+
+		if (Character.isLetter(c) || c == '_' || c == ':') {
+			return true;
+		}
+		return !first && (Character.isDigit(c) || c == '-' || c == '.');
+	}
+
+	// Consumes a keyword followed by a space or bracket
+	private boolean keyword(String word) {
+
+		skipSpace();
+		int end = position + word.length();
+		if (expression.startsWith(word, position)
+				&& (end == expression.length() || !isNameChar(expression.charAt(end), false))) {
+			position = end;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean peek(char c) {
+		return position < expression.length() && expression.charAt(position) == c;
+	}
+
+	private void expect(char c) {
+
+		if (!peek(c)) {
+			throw error("Expected '" + c + "'");
+		}
+		position++;
+	}
+
+	private void skipSpace() {
+
+		while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+			position++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+
+		if (position >= expression.length()) {
+			return new IllegalArgumentException(message + " at the end of the query");
+		}
+		return new IllegalArgumentException(message + " at position " + (position + 1));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Time and allocation of each phase of the viewer: parsing the document,
+ * building the index and tree, indexing labels and tags, searching, showing
+ * the path of the selection and expanding. Every run of a phase is emitted
+ * as a JFR event, recorded when a flight recording is running, and added to
+ * totals per phase for the stats dialog and --stats.
+ *
+ * Allocation is counted for the thread that runs the phase; the threads of
+ * the parallel loader are not included. Phases may nest: the stax loader
+ * indexes each batch as it parses, so its parse time includes those index
+ * runs.
+ */
+public class PhaseStats {
+
+	public static final String PARSE = "parse";
+	public static final String BUILD = "build";
+	public static final String INDEX = "index";
+	public static final String SEARCH = "search";
+	public static final String SELECTION = "selection";
+	public static final String EXPAND = "expand";
+
+	private static final String[] PHASES = { PARSE, BUILD, INDEX, SEARCH, SELECTION, EXPAND };
+
+	@Name("orbisoftware.xml_tree_viewer.Phase")
+	@Label("Viewer Phase")
+	@Category("XML Tree Viewer")
+	@Description("One run of a phase of loading, searching or browsing a document")
+	static class PhaseEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Detail")
+		String detail;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocated;
+	}
+
+	@Name("orbisoftware.xml_tree_viewer.DocumentLoaded")
+	@Label("Document Loaded")
+	@Category("XML Tree Viewer")
+	static class DocumentEvent extends Event {
+
+		@Label("Elements")
+		int elements;
+
+		@Label("Maximum Depth")
+		int maxDepth;
+
+		@Label("Heap Used")
+		@DataAmount
+		long heapUsed;
+	}
+
+	// One run of a phase, ended by close()
+	public static final class Phase implements AutoCloseable {
+
+		private final int phase;
+		private final PhaseEvent event = new PhaseEvent();
+		private final long startTime = System.nanoTime();
+		private final long startAllocated = allocatedBytes();
+		private String detail;
+
+		private Phase(int phase) {
+			this.phase = phase;
+			event.begin();
+		}
+
+		// What the run did, such as the loader or the search mode
+		public void setDetail(String detail) {
+			this.detail = detail;
+		}
+
+		@Override
+		public void close() {
+
+			long elapsed = System.nanoTime() - startTime;
+			long allocated = allocatedBytes() - startAllocated;
+
+			event.end();
+			if (event.shouldCommit()) {
+				event.phase = PHASES[phase];
+				event.detail = detail;
+				event.allocated = allocated;
+				event.commit();
+			}
+			add(phase, elapsed, allocated);
+		}
+	}
+
+	private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	// Runs, total and longest time in nanoseconds and bytes allocated of
+	// each phase
+	private static final long[][] totals = new long[PHASES.length][4];
+
+	// The document after the last load, elements is -1 before any
+	private static int elements = -1;
+	private static int maxDepth;
+	private static long heapUsed;
+
+	public static Phase start(String phase) {
+
+		for (int i = 0; i < PHASES.length; i++) {
+			if (PHASES[i].equals(phase)) {
+				return new Phase(i);
+			}
+		}
+		throw new IllegalArgumentException("Unknown phase '" + phase + "'");
+	}
+
+	// Records the size and depth of a loaded document and the heap it left
+	// in use
+	public static void documentLoaded(XmlIndex index) {
+
+		int size;
+		int depth = 0;
+		synchronized (index) {
+			size = index.size();
+			for (int id = 0; id < size; id++) {
+				depth = Math.max(depth, index.depth(id));
+			}
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+
+		DocumentEvent event = new DocumentEvent();
+		event.elements = size;
+		event.maxDepth = depth;
+		event.heapUsed = used;
+		event.commit();
+
+		synchronized (PhaseStats.class) {
+			elements = size;
+			maxDepth = depth;
+			heapUsed = used;
+		}
+	}
+
+	// Table of the totals per phase and the figures of the document
+	public static synchronized String summary() {
+
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("%-10s %8s %12s %12s %14s%n", "Phase", "Runs", "Total ms", "Longest ms",
+				"Allocated MB"));
+
+		for (int i = 0; i < PHASES.length; i++) {
+			long[] total = totals[i];
+			summary.append(String.format("%-10s %,8d %,12.1f %,12.1f %,14.1f%n", PHASES[i], total[0], total[1] / 1e6,
+					total[2] / 1e6, total[3] / 1e6));
+		}
+
+		if (elements >= 0) {
+			summary.append(String.format("%nElements %,d, maximum depth %d, heap used after load %.1f MB%n", elements,
+					maxDepth, heapUsed / 1e6));
+		}
+		return summary.toString();
+	}
+
+	private static synchronized void add(int phase, long elapsed, long allocated) {
+
+		long[] total = totals[phase];
+		total[0]++;
+		total[1] += elapsed;
+		total[2] = Math.max(total[2], elapsed);
+		total[3] += allocated;
+	}
+
+	// Bytes allocated by the current thread so far, 0 where the JVM does
+	// not count them
+	private static long allocatedBytes() {
+
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			long allocated = ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+			return Math.max(allocated, 0);
+		}
+		return 0;
+	}
+}
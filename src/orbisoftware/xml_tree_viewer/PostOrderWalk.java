@@ -0,0 +1,69 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Visits the elements of an index in the order of XmlIndex.postOrder(), a
+ * range of ids at a time, so that a long walk can release the index lock
+ * between ranges. Elements added after the walk was created are not
+ * visited.
+ */
+public class PostOrderWalk {
+
+	private final XmlIndex index;
+	private final int end;
+	private int next;
+	private int[] stack = new int[16];
+	private int top = -1;
+
+	public PostOrderWalk(XmlIndex index, int end) {
+		this.index = index;
+		this.end = end;
+	}
+
+	public boolean isDone() {
+		return next == end && top < 0;
+	}
+
+	// Passes over the next count ids, visiting the elements whose subtrees
+	// they complete. Called with the index locked.
+	public void walk(int count, IntConsumer action) {
+
+		int stop = (int) Math.min(end, (long) next + count);
+
+		for (; next < stop; next++) {
+			int parent = index.parent(next);
+			while (top >= 0 && stack[top] != parent) {
+				action.accept(stack[top--]);
+			}
+			if (++top == stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			stack[top] = next;
+		}
+
+		if (next == end) {
+			while (top >= 0) {
+				action.accept(stack[top--]);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Counts the bytes handed to a parser, and stops the parse when the load
+ * is cancelled.
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+	private final LoadMonitor monitor;
+	private volatile long bytesRead;
+	private long markedBytesRead;
+
+	public ProgressInputStream(InputStream in, LoadMonitor monitor) {
+
+		super(in);
+		this.monitor = monitor;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		int b = super.read();
+		if (b >= 0) {
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		int n = super.read(buffer, offset, length);
+		if (n > 0) {
+			count(n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	// Bytes read again after a reset are only counted once
+	@Override
+	public synchronized void mark(int readLimit) {
+
+		super.mark(readLimit);
+		markedBytesRead = bytesRead;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+
+		super.reset();
+		bytesRead = markedBytesRead;
+	}
+
+	private void count(long n) {
+
+		if (monitor.isCancelled()) {
+			throw new CancellationException("Loading cancelled");
+		}
+		bytesRead += n;
+	}
+}
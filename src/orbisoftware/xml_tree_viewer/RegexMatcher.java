@@ -0,0 +1,40 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds a regular expression anywhere in the text, ignoring case like the
+ * text search. The pattern is compiled once and a single Matcher is reset
+ * for each text.
+ */
+public class RegexMatcher implements TextMatcher {
+
+	private final Matcher matcher;
+
+	// Throws PatternSyntaxException for an invalid expression
+	public RegexMatcher(String regex) {
+		matcher = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE).matcher("");
+	}
+
+	@Override
+	public boolean matches(CharSequence text) {
+		return matcher.reset(text).find();
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.*;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntPredicate;
+
+/**
+ * Runs a search off the EDT and streams the matches, in post order, into a
+ * result list on the EDT as they are found. The index lock is only held for
+ * one batch of elements at a time, so painting and loading carry on during
+ * a long search. A new search cancels the running one.
+ *
+ * When every match of the query is known to be among the complete results
+ * of a previous search on the same elements, only those are checked again.
+ */
+public class SearchWorker extends SwingWorker<Void, int[]> {
+
+	// Elements checked per lock of the index
+	private static final int BATCH_SIZE = 16384;
+
+	public interface Listener {
+
+		// Matches were appended to the result list, called on the EDT
+		void matchesAdded();
+
+		// The search ran to the end, called on the EDT
+		void searchFinished();
+	}
+
+	private final XmlIndex index;
+	private final ElementQuery query;
+	private final int[] previousMatches;
+	private final IntList matches;
+	private final Listener listener;
+
+	// Matches published by the search thread and appended on the EDT. The
+	// last batches may be delivered after done(), so the search is only
+	// reported as finished once both counts agree.
+	private volatile int published;
+	private int delivered;
+	private boolean completed;
+
+	// previousMatches, if not null, holds the complete results of a query
+	// whose matches include all matches of this one
+	public SearchWorker(XmlIndex index, ElementQuery query, int[] previousMatches, IntList matches,
+			Listener listener) {
+
+		this.index = index;
+		this.query = query;
+		this.previousMatches = previousMatches;
+		this.matches = matches;
+		this.listener = listener;
+	}
+
+	@Override
+	protected Void doInBackground() {
+
+		try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.SEARCH)) {
+			search();
+			String detail = query.getClass().getSimpleName();
+			phase.setDetail(isCancelled() ? detail + ", cancelled" : detail);
+		}
+		return null;
+	}
+
+	private void search() {
+
+		IntPredicate matcher;
+		int size;
+
+		synchronized (index) {
+			size = index.size();
+			IntList found = query.prepare();
+
+			if (found == null) {
+				matcher = query::matches;
+			} else if (previousMatches == null && found.size() <= size / XmlIndex.SORT_FRACTION) {
+				// Few enough to order at once
+				IntList ordered = new IntList(found.size());
+				index.sortByPostOrder(found, ordered);
+				publishBatch(ordered);
+				return;
+			} else {
+				BitSet matched = new BitSet(size);
+				for (int i = 0; i < found.size(); i++) {
+					matched.set(found.get(i));
+				}
+				matcher = matched::get;
+			}
+		}
+
+		if (previousMatches != null) {
+			narrow(matcher);
+		} else {
+			walk(matcher, size);
+		}
+	}
+
+	// Checks the previous matches again, they are already in post order
+	private void narrow(IntPredicate matcher) {
+
+		for (int start = 0; start < previousMatches.length && !isCancelled(); start += BATCH_SIZE) {
+			int end = Math.min(previousMatches.length, start + BATCH_SIZE);
+			IntList batch = new IntList();
+
+			synchronized (index) {
+				for (int i = start; i < end; i++) {
+					if (matcher.test(previousMatches[i])) {
+						batch.add(previousMatches[i]);
+					}
+				}
+			}
+			publishBatch(batch);
+		}
+	}
+
+	private void walk(IntPredicate matcher, int size) {
+
+		PostOrderWalk walk = new PostOrderWalk(index, size);
+
+		while (!walk.isDone() && !isCancelled()) {
+			IntList batch = new IntList();
+
+			synchronized (index) {
+				walk.walk(BATCH_SIZE, id -> {
+					if (matcher.test(id)) {
+						batch.add(id);
+					}
+				});
+			}
+			publishBatch(batch);
+		}
+	}
+
+	private void publishBatch(IntList batch) {
+
+		if (!batch.isEmpty()) {
+			published += batch.size();
+			publish(batch.toArray());
+		}
+	}
+
+	@Override
+	protected void process(List<int[]> batches) {
+
+		// The result list already belongs to a newer search
+		if (isCancelled()) {
+			return;
+		}
+
+		for (int[] batch : batches) {
+			for (int id : batch) {
+				matches.add(id);
+			}
+			delivered += batch.length;
+		}
+		listener.matchesAdded();
+		reportIfFinished();
+	}
+
+	@Override
+	protected void done() {
+
+		if (isCancelled()) {
+			return;
+		}
+
+		try {
+			get();
+			completed = true;
+			reportIfFinished();
+		} catch (CancellationException | InterruptedException e) {
+			// Replaced by a newer search
+		} catch (ExecutionException e) {
+			JOptionPane.showMessageDialog(null, "Search failed:\n" + e.getCause().getMessage());
+		}
+	}
+
+	private void reportIfFinished() {
+
+		if (completed && delivered == published) {
+			completed = false;
+			listener.searchFinished();
+		}
+	}
+}
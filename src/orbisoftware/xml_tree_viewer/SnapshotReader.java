@@ -0,0 +1,152 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the columns written by a SnapshotWriter. Array lengths are checked
+ * against the size of the file, so a damaged snapshot fails with an
+ * IOException instead of a huge allocation.
+ */
+public class SnapshotReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final long length;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	public SnapshotReader(File file) throws IOException {
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		length = channel.size();
+		buffer.limit(0);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public boolean readBoolean() throws IOException {
+
+		require(1);
+		return buffer.get() != 0;
+	}
+
+	public int readInt() throws IOException {
+
+		require(Integer.BYTES);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+
+		require(Long.BYTES);
+		return buffer.getLong();
+	}
+
+	public String readString() throws IOException {
+		return new String(readChars(readInt()));
+	}
+
+	public int[] readInts(int count) throws IOException {
+
+		int[] values = new int[checkCount(count, Integer.BYTES)];
+		for (int done = 0; done < count;) {
+			require(Integer.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().get(values, done, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			done += n;
+		}
+		return values;
+	}
+
+	public long[] readLongs(int count) throws IOException {
+
+		long[] values = new long[checkCount(count, Long.BYTES)];
+		for (int done = 0; done < count;) {
+			require(Long.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Long.BYTES);
+			buffer.asLongBuffer().get(values, done, n);
+			buffer.position(buffer.position() + n * Long.BYTES);
+			done += n;
+		}
+		return values;
+	}
+
+	public char[] readChars(int count) throws IOException {
+
+		char[] values = new char[checkCount(count, Character.BYTES)];
+		for (int done = 0; done < count;) {
+			require(Character.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Character.BYTES);
+			buffer.asCharBuffer().get(values, done, n);
+			buffer.position(buffer.position() + n * Character.BYTES);
+			done += n;
+		}
+		return values;
+	}
+
+	// Skips values that are not needed
+	public void skip(long bytes) throws IOException {
+
+		int buffered = (int) Math.min(bytes, buffer.remaining());
+		buffer.position(buffer.position() + buffered);
+		if (bytes > buffered) {
+			channel.position(channel.position() + bytes - buffered);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private int checkCount(int count, int width) throws IOException {
+
+		if (count < 0 || (long) count * width > length) {
+			throw new IOException("Snapshot is damaged");
+		}
+		return count;
+	}
+
+	// Makes at least the given number of bytes available in the buffer
+	private void require(int bytes) throws IOException {
+
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+
+		buffer.compact();
+		while (buffer.position() < bytes) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Snapshot is truncated");
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the columns of an index snapshot. Arrays are written as plain
+ * runs of little-endian values through one reused buffer, so on common
+ * hardware a column can be read back, or mapped, as a block copy.
+ */
+public class SnapshotWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+	public SnapshotWriter(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	public void writeBoolean(boolean value) throws IOException {
+
+		require(1);
+		buffer.put((byte) (value ? 1 : 0));
+	}
+
+	public void writeInt(int value) throws IOException {
+
+		require(Integer.BYTES);
+		buffer.putInt(value);
+	}
+
+	public void writeLong(long value) throws IOException {
+
+		require(Long.BYTES);
+		buffer.putLong(value);
+	}
+
+	public void writeString(String value) throws IOException {
+
+		writeInt(value.length());
+		writeChars(value.toCharArray(), value.length());
+	}
+
+	// Writes the first count values of an array
+	public void writeInts(int[] values, int count) throws IOException {
+
+		for (int done = 0; done < count;) {
+			require(Integer.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Integer.BYTES);
+			buffer.asIntBuffer().put(values, done, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			done += n;
+		}
+	}
+
+	public void writeLongs(long[] values, int count) throws IOException {
+
+		for (int done = 0; done < count;) {
+			require(Long.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Long.BYTES);
+			buffer.asLongBuffer().put(values, done, n);
+			buffer.position(buffer.position() + n * Long.BYTES);
+			done += n;
+		}
+	}
+
+	public void writeChars(char[] values, int count) throws IOException {
+
+		for (int done = 0; done < count;) {
+			require(Character.BYTES);
+			int n = Math.min(count - done, buffer.remaining() / Character.BYTES);
+			buffer.asCharBuffer().put(values, done, n);
+			buffer.position(buffer.position() + n * Character.BYTES);
+			done += n;
+		}
+	}
+
+	// Bytes written so far
+	public long position() throws IOException {
+		return channel.position() + buffer.position();
+	}
+
+	// Overwrites a value written earlier, such as a length in a header
+	public void writeLongAt(long position, long value) throws IOException {
+
+		flush();
+		ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, value);
+		while (bytes.hasRemaining()) {
+			channel.write(bytes, position + bytes.position());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void require(int bytes) throws IOException {
+
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
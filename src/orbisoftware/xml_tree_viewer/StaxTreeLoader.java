@@ -0,0 +1,244 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.xml.stream.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds the element index directly from a StAX event stream. Unlike the
+ * DOM path, no intermediate Document is held in memory while loading.
+ * Compressed files are decompressed on another thread while they parse.
+ */
+public class StaxTreeLoader {
+
+	public static XmlIndex load(File xmlFile) throws IOException, XMLStreamException {
+
+		ParsedXmlIndex index = new ParsedXmlIndex();
+		load(xmlFile, index, LoadMonitor.NONE);
+		return index;
+	}
+
+	public static void load(File xmlFile, ParsedXmlIndex index, LoadMonitor monitor) throws IOException, XMLStreamException {
+
+		XMLInputFactory factory = XmlParsers.inputFactory();
+
+		// Progress counts the bytes of the file, compressed or not
+		try (ProgressInputStream progress = new ProgressInputStream(new BufferedInputStream(new FileInputStream(xmlFile)), monitor);
+				InputStream in = DecompressingInputStream.open(progress)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			EventBatch batch = new EventBatch();
+			try {
+				// Reading may wait for the disk or the decompressor, so the
+				// lock is only held to add a batch that has been read
+				while (reader.hasNext()) {
+					batch.read(reader);
+					synchronized (index) {
+						batch.addTo(index);
+					}
+					monitor.checkpoint(progress.getBytesRead());
+				}
+				synchronized (index) {
+					index.trimToSize();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	// Indexes a document from a stream into a new index that no other
+	// thread reads, so no batching or locking is needed
+	static ParsedXmlIndex parse(InputStream in, String encoding) throws XMLStreamException {
+
+		ParsedXmlIndex index = new ParsedXmlIndex();
+		parse(XmlParsers.inputFactory().createXMLStreamReader(in, encoding), index);
+		return index;
+	}
+
+	// Adds a document to an index no other thread reads, under its innermost
+	// open element. The encoding is detected from the stream.
+	static void parse(InputStream in, ParsedXmlIndex index) throws XMLStreamException {
+		parse(XmlParsers.inputFactory().createXMLStreamReader(in), index);
+	}
+
+	private static void parse(XMLStreamReader reader, ParsedXmlIndex index) throws XMLStreamException {
+
+		try {
+			while (reader.hasNext()) {
+				addEvent(reader, reader.next(), index);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void addEvent(XMLStreamReader reader, int event, ParsedXmlIndex index) {
+
+		switch (event) {
+
+		case XMLStreamConstants.START_ELEMENT:
+			index.startElement(qualifiedName(reader));
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				String name = attributeName(reader, i);
+				if (name != null) {
+					index.addAttribute(name, reader.getAttributeValue(i));
+				}
+			}
+			break;
+
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+			index.appendText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			break;
+
+		case XMLStreamConstants.END_ELEMENT:
+			index.endElement();
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	// Name of an attribute, or null for a namespace declaration, which
+	// is an attribute without namespace awareness
+	private static String attributeName(XMLStreamReader reader, int i) {
+
+		String name = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+		return name.equals("xmlns") || name.startsWith("xmlns:") ? null : name;
+	}
+
+	// Same form as the DOM node name (prefix:localName)
+	private static String qualifiedName(XMLStreamReader reader) {
+		return qualifiedName(reader.getPrefix(), reader.getLocalName());
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+
+		if (prefix == null || prefix.isEmpty()) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+
+	// Events read from the stream but not yet added to the index. The
+	// reader reuses its text buffer, so text is copied.
+	private static class EventBatch {
+
+		private final int[] events = new int[LoadMonitor.BATCH_SIZE];
+		private int eventCount;
+
+		// Per start element its attribute count, per text event its length
+		private final int[] lengths = new int[LoadMonitor.BATCH_SIZE];
+
+		// Per start element its name, then attribute names and values
+		private final List<String> strings = new ArrayList<>();
+
+		private char[] text = new char[8192];
+		private int textLength;
+
+		void read(XMLStreamReader reader) throws XMLStreamException {
+
+			eventCount = 0;
+			textLength = 0;
+			strings.clear();
+
+			for (int n = 0; n < LoadMonitor.BATCH_SIZE && reader.hasNext(); n++) {
+				int event = reader.next();
+
+				switch (event) {
+
+				case XMLStreamConstants.START_ELEMENT:
+					strings.add(qualifiedName(reader));
+					int attributes = 0;
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						String name = attributeName(reader, i);
+						if (name != null) {
+							strings.add(name);
+							strings.add(reader.getAttributeValue(i));
+							attributes++;
+						}
+					}
+					add(event, attributes);
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					int length = reader.getTextLength();
+					if (textLength + length > text.length) {
+						text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+					}
+					System.arraycopy(reader.getTextCharacters(), reader.getTextStart(), text, textLength, length);
+					textLength += length;
+					add(XMLStreamConstants.CHARACTERS, length);
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					add(event, 0);
+					break;
+
+				default:
+					break;
+				}
+			}
+		}
+
+		// The caller holds the lock on the index
+		void addTo(ParsedXmlIndex index) {
+
+			int string = 0;
+			int textStart = 0;
+
+			for (int i = 0; i < eventCount; i++) {
+				switch (events[i]) {
+
+				case XMLStreamConstants.START_ELEMENT:
+					index.startElement(strings.get(string++));
+					for (int n = 0; n < lengths[i]; n++) {
+						index.addAttribute(strings.get(string), strings.get(string + 1));
+						string += 2;
+					}
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+					index.appendText(text, textStart, lengths[i]);
+					textStart += lengths[i];
+					break;
+
+				default:
+					index.endElement();
+					break;
+				}
+			}
+		}
+
+		private void add(int event, int length) {
+
+			events[eventCount] = event;
+			lengths[eventCount] = length;
+			eventCount++;
+		}
+	}
+}
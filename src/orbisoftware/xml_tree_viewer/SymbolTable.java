@@ -0,0 +1,124 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed table of the distinct char sequences stored in a char
+ * pool, used to keep each repeated tag name and leaf value once while a
+ * document loads. The table only holds ints; the characters stay in the
+ * pool of the owner, which passes it in on every call as it may have been
+ * reallocated since.
+ *
+ * Symbols are numbered in the order they were added, and as they are
+ * added at the end of the pool their offsets increase with the number.
+ */
+public class SymbolTable {
+
+	// Symbol number + 1 per slot, 0 for an empty slot
+	private int[] slots = new int[64];
+
+	private int[] offsets = new int[32];
+	private int[] lengths = new int[32];
+	private int[] hashes = new int[32];
+	private int count;
+
+	public int size() {
+		return count;
+	}
+
+	public int offset(int symbol) {
+		return offsets[symbol];
+	}
+
+	public int length(int symbol) {
+		return lengths[symbol];
+	}
+
+	// Returns the symbol of an equal sequence added before, or adds the
+	// chars at pool[offset, offset + length) as a new symbol and returns it
+	public int intern(char[] pool, int offset, int length) {
+
+		int hash = hash(pool, offset, length);
+		int mask = slots.length - 1;
+
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int symbol = slots[slot] - 1;
+
+			if (symbol < 0) {
+				return add(slot, hash, offset, length);
+			}
+			if (hashes[symbol] == hash && lengths[symbol] == length
+					&& Arrays.equals(pool, offsets[symbol], offsets[symbol] + length, pool, offset, offset + length)) {
+				return symbol;
+			}
+		}
+	}
+
+	// Symbol stored at an offset of the pool, or -1
+	public int symbolAt(int offset) {
+
+		int symbol = Arrays.binarySearch(offsets, 0, count, offset);
+		return symbol >= 0 ? symbol : -1;
+	}
+
+	private int add(int slot, int hash, int offset, int length) {
+
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2);
+		}
+
+		int symbol = count++;
+		offsets[symbol] = offset;
+		lengths[symbol] = length;
+		hashes[symbol] = hash;
+		slots[slot] = symbol + 1;
+
+		// Keep the table at most half full
+		if (count * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return symbol;
+	}
+
+	private void rehash(int capacity) {
+
+		slots = new int[capacity];
+		int mask = capacity - 1;
+
+		for (int symbol = 0; symbol < count; symbol++) {
+			int slot = hashes[symbol] & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = symbol + 1;
+		}
+	}
+
+	private static int hash(char[] pool, int offset, int length) {
+
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + pool[i];
+		}
+		// Spread the high bits into the masked low ones
+		return hash ^ (hash >>> 16);
+	}
+}
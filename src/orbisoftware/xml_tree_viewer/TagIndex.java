@@ -0,0 +1,249 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tag name of every element as a small integer, and the elements of each
+ * tag in document order, so that path queries can start from the elements
+ * of one tag. Filled incrementally while the document loads; the tag of an
+ * element is known as soon as it is opened.
+ *
+ * The index costs two ints per element. If that outgrows its share of the
+ * heap the index is dropped and path queries compare tag names instead.
+ *
+ * All methods must be called with the XmlIndex locked.
+ */
+public class TagIndex {
+
+	// The index may use up to this fraction of the maximum heap
+	private static final int HEAP_FRACTION = 8;
+
+	private final XmlIndex index;
+	private final long memoryLimit = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+	private boolean dropped;
+
+	private final Map<String, Integer> tagIds = new HashMap<>();
+	private IntList[] elements = new IntList[64];
+	private int tagCount;
+
+	private int[] tagOf = new int[XmlIndex.INITIAL_CAPACITY];
+	private int indexedSize;
+
+	public TagIndex(XmlIndex index) {
+		this.index = index;
+	}
+
+	public boolean isDropped() {
+		return dropped;
+	}
+
+	// Indexes the elements added since the last call
+	public void update() {
+
+		if (dropped) {
+			return;
+		}
+
+		int size = index.size();
+		if ((long) size * 2 * Integer.BYTES > memoryLimit) {
+			drop();
+			return;
+		}
+
+		if (size > tagOf.length) {
+			tagOf = Arrays.copyOf(tagOf, Math.max(size, tagOf.length + (tagOf.length >> 1)));
+		}
+
+		for (int id = indexedSize; id < size; id++) {
+			int tagId = internTag(index.tagName(id));
+			tagOf[id] = tagId;
+			elements[tagId].add(id);
+		}
+		indexedSize = size;
+	}
+
+	// Called after the elements from..to were replaced by from..newTo.
+	// Tag names are only looked up for the new elements and their parent,
+	// which may have been renamed; the rest of tagOf moves as it is and the
+	// element lists are refilled from it.
+	public void replaceElements(int parentId, int from, int to, int newTo) {
+
+		if (dropped) {
+			return;
+		}
+
+		int size = index.size();
+		int oldSize = size - (newTo - to);
+		if (indexedSize != oldSize) {
+			// Not indexed up to the replacement, update() indexes it all
+			reset();
+			return;
+		}
+		if ((long) size * 2 * Integer.BYTES > memoryLimit) {
+			drop();
+			return;
+		}
+
+		if (size > tagOf.length) {
+			tagOf = Arrays.copyOf(tagOf, Math.max(size, tagOf.length + (tagOf.length >> 1)));
+		}
+		System.arraycopy(tagOf, to, tagOf, newTo, oldSize - to);
+		tagOf[parentId] = internTag(index.tagName(parentId));
+		for (int id = from; id < newTo; id++) {
+			tagOf[id] = internTag(index.tagName(id));
+		}
+
+		for (int tagId = 0; tagId < tagCount; tagId++) {
+			elements[tagId].clear();
+		}
+		for (int id = 0; id < size; id++) {
+			elements[tagOf[id]].add(id);
+		}
+		indexedSize = size;
+	}
+
+	// Forgets the indexed elements after the index was renumbered, the
+	// next update() indexes them all again
+	private void reset() {
+
+		if (dropped) {
+			return;
+		}
+
+		tagIds.clear();
+		elements = new IntList[64];
+		tagCount = 0;
+		indexedSize = 0;
+	}
+
+	// Id of a tag name, or -1 if no element has it
+	public int tagId(String tag) {
+
+		Integer tagId = tagIds.get(tag);
+		return tagId != null ? tagId : -1;
+	}
+
+	public int tagOf(int id) {
+		return tagOf[id];
+	}
+
+	// Elements with a tag, in document order
+	public IntList elements(int tagId) {
+		return elements[tagId];
+	}
+
+	// Writes the index of a complete document to a snapshot
+	void writeSnapshot(SnapshotWriter out) throws IOException {
+
+		out.writeBoolean(dropped);
+		if (dropped) {
+			return;
+		}
+
+		String[] names = new String[tagCount];
+		for (Map.Entry<String, Integer> entry : tagIds.entrySet()) {
+			names[entry.getValue()] = entry.getKey();
+		}
+
+		out.writeInt(tagCount);
+		for (String name : names) {
+			out.writeString(name);
+		}
+		out.writeInt(indexedSize);
+		out.writeInts(tagOf, indexedSize);
+	}
+
+	// Fills a new index from a snapshot, the element lists follow from the
+	// tag of each element
+	void readSnapshot(SnapshotReader in) throws IOException {
+
+		if (in.readBoolean()) {
+			drop();
+			return;
+		}
+
+		int count = in.readInt();
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = in.readString();
+		}
+		int indexed = in.readInt();
+		if (indexed != index.size()) {
+			throw new IOException("Snapshot is damaged");
+		}
+
+		// The snapshot may come from a run with a larger heap
+		if ((long) indexed * 2 * Integer.BYTES > memoryLimit) {
+			in.skip((long) indexed * Integer.BYTES);
+			drop();
+			return;
+		}
+		int[] tags = in.readInts(indexed);
+
+		int[] listSizes = new int[count];
+		for (int id = 0; id < indexed; id++) {
+			if (tags[id] < 0 || tags[id] >= count) {
+				throw new IOException("Snapshot is damaged");
+			}
+			listSizes[tags[id]]++;
+		}
+
+		IntList[] lists = new IntList[Math.max(count, 1)];
+		for (int i = 0; i < count; i++) {
+			lists[i] = new IntList(listSizes[i]);
+		}
+		for (int id = 0; id < indexed; id++) {
+			lists[tags[id]].add(id);
+		}
+
+		for (int i = 0; i < count; i++) {
+			tagIds.put(names[i], i);
+		}
+		elements = lists;
+		tagCount = count;
+		tagOf = tags;
+		indexedSize = indexed;
+	}
+
+	private int internTag(String tag) {
+
+		Integer tagId = tagIds.get(tag);
+
+		if (tagId == null) {
+			tagId = tagCount++;
+			if (tagId == elements.length) {
+				elements = Arrays.copyOf(elements, tagId * 2);
+			}
+			elements[tagId] = new IntList();
+			tagIds.put(tag, tagId);
+		}
+		return tagId;
+	}
+
+	private void drop() {
+
+		dropped = true;
+		tagIds.clear();
+		elements = null;
+		tagOf = null;
+	}
+}
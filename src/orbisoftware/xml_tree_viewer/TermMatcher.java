@@ -0,0 +1,156 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick matcher for any of a set of terms, ignoring case. The terms
+ * are compiled into a complete automaton over the characters that occur in
+ * them, so a text is matched in one pass with a table lookup per character
+ * and no allocation.
+ */
+public class TermMatcher implements TextMatcher {
+
+	// Character class of every char, 0 for chars in no term
+	private final char[] charClass = new char[Character.MAX_VALUE + 1];
+	private final int classCount;
+
+	// Next state for each state and character class, and the states that
+	// end a term, directly or through a shorter suffix
+	private final int[] next;
+	private final boolean[] accepting;
+
+	public TermMatcher(List<String> terms) {
+
+		if (terms.isEmpty()) {
+			throw new IllegalArgumentException("No search terms");
+		}
+
+		int classes = 1;
+		int maxStates = 1;
+		for (String term : terms) {
+			if (term.isEmpty()) {
+				throw new IllegalArgumentException("Empty search term");
+			}
+			for (int i = 0; i < term.length(); i++) {
+				char c = Character.toLowerCase(term.charAt(i));
+				if (charClass[c] == 0) {
+					charClass[c] = (char) classes++;
+				}
+			}
+			maxStates += term.length();
+		}
+		classCount = classes;
+
+		// Trie of the terms, 0 marks a missing edge as the root has no parent
+		int[] edges = new int[maxStates * classCount];
+		boolean[] ends = new boolean[maxStates];
+		int states = 1;
+
+		for (String term : terms) {
+			int state = 0;
+			for (int i = 0; i < term.length(); i++) {
+				int edge = state * classCount + charClass[Character.toLowerCase(term.charAt(i))];
+				if (edges[edge] == 0) {
+					edges[edge] = states++;
+				}
+				state = edges[edge];
+			}
+			ends[state] = true;
+		}
+
+		// Breadth first, each missing edge follows the failure link of its
+		// state, which is already complete as it is shallower
+		next = Arrays.copyOf(edges, states * classCount);
+		accepting = Arrays.copyOf(ends, states);
+		int[] failure = new int[states];
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+		for (int c = 0; c < classCount; c++) {
+			if (next[c] != 0) {
+				queue.add(next[c]);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			accepting[state] |= accepting[failure[state]];
+
+			for (int c = 0; c < classCount; c++) {
+				int child = next[state * classCount + c];
+				int fallback = next[failure[state] * classCount + c];
+
+				if (child != 0) {
+					failure[child] = fallback;
+					queue.add(child);
+				} else {
+					next[state * classCount + c] = fallback;
+				}
+			}
+		}
+	}
+
+	// Splits a query into terms at white space, double quotes keep a phrase
+	// with spaces together
+	public static List<String> split(String query) {
+
+		List<String> terms = new ArrayList<>();
+		int position = 0;
+
+		while (position < query.length()) {
+			char c = query.charAt(position);
+
+			if (Character.isWhitespace(c)) {
+				position++;
+			} else if (c == '"') {
+				int end = query.indexOf('"', position + 1);
+				if (end < 0) {
+					end = query.length();
+				}
+				if (end > position + 1) {
+					terms.add(query.substring(position + 1, end));
+				}
+				position = end + 1;
+			} else {
+				int end = position;
+				while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+					end++;
+				}
+				terms.add(query.substring(position, end));
+				position = end;
+			}
+		}
+		return terms;
+	}
+
+	@Override
+	public boolean matches(CharSequence text) {
+
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = next[state * classCount + charClass[Character.toLowerCase(text.charAt(i))]];
+			if (accepting[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Compact index of the elements of an XML document. Elements are numbered
+ * in document order (the root is 0), so the first child of an element is
+ * always the next id, and the structure is kept in parallel int arrays
+ * instead of one object per element. Subclasses decide how tag names and
+ * leaf text are stored.
+ *
+ * An index may be read while a loader is still adding elements; loaders
+ * and readers synchronize on the index. Elements that are still open have
+ * no leaf text and no next sibling yet.
+ */
+public abstract class XmlIndex {
+
+	protected static final int INITIAL_CAPACITY = 1024;
+
+	// Results larger than this fraction of the elements are put in post
+	// order by a walk of the tree instead of a sort
+	static final int SORT_FRACTION = 16;
+
+	protected int size;
+	private int[] parent = new int[INITIAL_CAPACITY];
+	private int[] lastDescendant = new int[INITIAL_CAPACITY];
+	private int[] childCount = new int[INITIAL_CAPACITY];
+	private int[] depth = new int[INITIAL_CAPACITY];
+
+	// Innermost element still open while the index is built
+	protected int current = -1;
+
+	public int size() {
+		return size;
+	}
+
+	public int parent(int id) {
+		return parent[id];
+	}
+
+	public int depth(int id) {
+		return depth[id];
+	}
+
+	public int childCount(int id) {
+		return childCount[id];
+	}
+
+	// Last element of the subtree of a closed element
+	public int lastDescendant(int id) {
+		return lastDescendant[id];
+	}
+
+	public int firstChild(int id) {
+		return childCount[id] > 0 ? id + 1 : -1;
+	}
+
+	public int nextSibling(int id) {
+
+		int next = lastDescendant[id] + 1;
+
+		if (next < size && parent[next] == parent[id]) {
+			return next;
+		}
+		return -1;
+	}
+
+	// Whether the loader has not closed the element yet
+	public boolean isOpen(int id) {
+
+		// The last descendant of an open element is only set when it closes
+		return id == current || (childCount[id] > 0 && lastDescendant[id] == id);
+	}
+
+	// Position of an element in the postOrder() sequence. Everything up to
+	// its last descendant comes first, except its ancestors.
+	public int postOrderPosition(int id) {
+
+		int last = isOpen(id) ? size - 1 : lastDescendant[id];
+		return last - depth[id];
+	}
+
+	public abstract String tagName(int id);
+
+	// Trimmed text of an element without child elements, or null
+	public abstract String leafText(int id);
+
+	// Text of the first child element "name" that has text, or null. The
+	// tree shows the names of an element and its ancestors as its path.
+	public String elementName(int id) {
+
+		for (int child = firstChild(id); child >= 0; child = nextSibling(child)) {
+			if (tagName(child).equals("name")) {
+				String text = leafText(child);
+				if (text != null) {
+					return text;
+				}
+			}
+		}
+		return null;
+	}
+
+	// Display label, "name = value" for leaf elements with text
+	public String label(int id) {
+
+		String text = leafText(id);
+
+		if (text == null) {
+			return tagName(id);
+		}
+		return tagName(id) + " = " + text;
+	}
+
+	// Appends the label to a buffer, subclasses avoid creating strings
+	// where they can
+	public void appendLabel(int id, StringBuilder buffer) {
+		appendLabel(id, buffer, Integer.MAX_VALUE);
+	}
+
+	// Appends the label with its text cut to a maximum length, followed by
+	// "..." when it was cut
+	public void appendLabel(int id, StringBuilder buffer, int maxTextLength) {
+
+		buffer.append(tagName(id));
+		appendText(id, buffer, maxTextLength);
+	}
+
+	// Appends the label as the tree shows it, with the attributes after the
+	// tag name (item id="3" = text). Each value is cut like the text.
+	// Searches match the label without the attributes.
+	public void appendDisplayLabel(int id, StringBuilder buffer, int maxTextLength) {
+
+		buffer.append(tagName(id));
+		appendAttributes(id, buffer, maxTextLength);
+		appendText(id, buffer, maxTextLength);
+	}
+
+	public int attributeCount(int id) {
+		return 0;
+	}
+
+	// Name of the n-th attribute of an element, in the order the parser
+	// reported them
+	public String attributeName(int id, int n) {
+		throw new IndexOutOfBoundsException("Attribute " + n + " of element " + id);
+	}
+
+	public String attributeValue(int id, int n) {
+		throw new IndexOutOfBoundsException("Attribute " + n + " of element " + id);
+	}
+
+	// Appends " = text" for a leaf element with text
+	protected void appendText(int id, StringBuilder buffer, int maxTextLength) {
+
+		String text = leafText(id);
+		if (text != null) {
+			buffer.append(" = ").append(text, 0, Math.min(text.length(), maxTextLength));
+			if (text.length() > maxTextLength) {
+				buffer.append("...");
+			}
+		}
+	}
+
+	// Appends name="value" for each attribute
+	protected void appendAttributes(int id, StringBuilder buffer, int maxValueLength) {
+
+		int count = attributeCount(id);
+		for (int n = 0; n < count; n++) {
+			String value = attributeValue(id, n);
+			buffer.append(' ').append(attributeName(id, n)).append("=\"");
+			buffer.append(value, 0, Math.min(value.length(), maxValueLength));
+			if (value.length() > maxValueLength) {
+				buffer.append("...");
+			}
+			buffer.append('"');
+		}
+	}
+
+	// Elements not yet closed by the loader, from the root down
+	public int[] openElements() {
+
+		int[] open = new int[current >= 0 ? depth[current] + 1 : 0];
+		for (int id = current; id >= 0; id = parent[id]) {
+			open[depth[id]] = id;
+		}
+		return open;
+	}
+
+	// Visits the elements children first, the order of depthFirstEnumeration()
+	public void postOrder(IntConsumer action) {
+		new PostOrderWalk(this, size).walk(size, action);
+	}
+
+	// Adds elements given in any order to matches in post order
+	public void sortByPostOrder(IntList found, IntList matches) {
+
+		if (found.size() > size / SORT_FRACTION) {
+			// Walking the whole tree is cheaper than sorting this many
+			BitSet matched = new BitSet(size);
+			for (int i = 0; i < found.size(); i++) {
+				matched.set(found.get(i));
+			}
+			postOrder(id -> {
+				if (matched.get(id)) {
+					matches.add(id);
+				}
+			});
+			return;
+		}
+
+		long[] ordered = new long[found.size()];
+		for (int i = 0; i < ordered.length; i++) {
+			int id = found.get(i);
+			ordered[i] = (long) postOrderPosition(id) << 32 | id;
+		}
+		Arrays.sort(ordered);
+
+		for (long entry : ordered) {
+			matches.add((int) entry);
+		}
+	}
+
+	// Approximate heap taken by the index
+	public long memoryUsed() {
+		return (long) parent.length * 4 * Integer.BYTES;
+	}
+
+	// Releases the unused capacity once loading is complete
+	public void trimToSize() {
+		grow(size);
+	}
+
+	// Writes a complete index to a snapshot. Only the parents are stored,
+	// the rest of the structure follows from them.
+	void writeSnapshot(SnapshotWriter out) throws IOException {
+
+		out.writeInt(size);
+		out.writeInts(parent, size);
+	}
+
+	// Fills a new index from a snapshot written by writeSnapshot()
+	void readSnapshot(SnapshotReader in) throws IOException {
+
+		int count = in.readInt();
+		int[] parents = in.readInts(count);
+		int[] lastDescendants = new int[count];
+		int[] childCounts = new int[count];
+		int[] depths = new int[count];
+
+		for (int id = 0; id < count; id++) {
+			int parentId = parents[id];
+			if (parentId >= id || (parentId < 0 && id > 0)) {
+				throw new IOException("Snapshot is damaged");
+			}
+			if (parentId >= 0) {
+				childCounts[parentId]++;
+				depths[id] = depths[parentId] + 1;
+			}
+			lastDescendants[id] = id;
+		}
+
+		// Descendants have higher ids, so each is final before it is
+		// passed up to its parent
+		for (int id = count - 1; id > 0; id--) {
+			int parentId = parents[id];
+			lastDescendants[parentId] = Math.max(lastDescendants[parentId], lastDescendants[id]);
+		}
+
+		parent = parents;
+		lastDescendant = lastDescendants;
+		childCount = childCounts;
+		depth = depths;
+		size = count;
+		current = -1;
+	}
+
+	// Adds an element under the innermost open element and opens it
+	protected int openElement() {
+
+		if (size == parent.length) {
+			grow(Math.max(INITIAL_CAPACITY, size + (size >> 1)));
+		}
+
+		int id = size++;
+		parent[id] = current;
+		lastDescendant[id] = id;
+		childCount[id] = 0;
+		depth[id] = current >= 0 ? depth[current] + 1 : 0;
+
+		if (current >= 0) {
+			childCount[current]++;
+		}
+
+		current = id;
+		return id;
+	}
+
+	// Closes the innermost open element and returns its id
+	protected int closeElement() {
+
+		int id = current;
+
+		lastDescendant[id] = size - 1;
+		current = parent[id];
+		return id;
+	}
+
+	// Appends the elements below the root of another, complete index under
+	// the innermost open element. Returns the offset added to their ids.
+	protected int appendSubtrees(XmlIndex part) {
+
+		int count = part.size - 1;
+		if (size + count > parent.length) {
+			grow(Math.max(size + count, size + (size >> 1)));
+		}
+
+		int offset = size - 1;
+		for (int partId = 1; partId <= count; partId++) {
+			int id = partId + offset;
+			int partParent = part.parent[partId];
+
+			parent[id] = partParent == 0 ? current : partParent + offset;
+			lastDescendant[id] = part.lastDescendant[partId] + offset;
+			childCount[id] = part.childCount[partId];
+			depth[id] = part.depth[partId] + depth[current];
+		}
+
+		childCount[current] += part.childCount[0];
+		size += count;
+		return offset;
+	}
+
+	// Replaces the consecutive child subtrees of an element that span the
+	// ids from one up to another with the elements below the root of a
+	// complete index. When both are equal the part is inserted before that
+	// id. Later elements move by the difference in size. Returns the offset
+	// added to the ids of the part.
+	protected int replaceSubtrees(int parentId, int from, int to, XmlIndex part) {
+
+		int count = part.size - 1;
+		int delta = count - (to - from);
+		int newSize = size + delta;
+		if (newSize > parent.length) {
+			grow(Math.max(newSize, size + (size >> 1)));
+		}
+
+		int removedChildren = 0;
+		for (int id = from; id < to; id = lastDescendant[id] + 1) {
+			removedChildren++;
+		}
+
+		moveElements(to, to + delta, size - to);
+		for (int id = to + delta; id < newSize; id++) {
+			if (parent[id] >= to) {
+				parent[id] += delta;
+			}
+			lastDescendant[id] += delta;
+		}
+		for (int ancestor = parentId; ancestor >= 0; ancestor = parent[ancestor]) {
+			lastDescendant[ancestor] += delta;
+		}
+		childCount[parentId] += part.childCount[0] - removedChildren;
+
+		int offset = from - 1;
+		for (int partId = 1; partId <= count; partId++) {
+			int id = partId + offset;
+			int partParent = part.parent[partId];
+
+			parent[id] = partParent == 0 ? parentId : partParent + offset;
+			lastDescendant[id] = part.lastDescendant[partId] + offset;
+			childCount[id] = part.childCount[partId];
+			depth[id] = part.depth[partId] + depth[parentId];
+		}
+
+		size = newSize;
+		return offset;
+	}
+
+	// Moves the columns of a run of elements to another position, the runs
+	// may overlap
+	protected void moveElements(int from, int to, int count) {
+
+		System.arraycopy(parent, from, parent, to, count);
+		System.arraycopy(lastDescendant, from, lastDescendant, to, count);
+		System.arraycopy(childCount, from, childCount, to, count);
+		System.arraycopy(depth, from, depth, to, count);
+	}
+
+	protected void grow(int capacity) {
+
+		parent = Arrays.copyOf(parent, capacity);
+		lastDescendant = Arrays.copyOf(lastDescendant, capacity);
+		childCount = Arrays.copyOf(childCount, capacity);
+		depth = Arrays.copyOf(depth, capacity);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+
+/**
+ * Parser factories shared by all loads, configured once. Looking up and
+ * setting up a factory is repeated work when many files or chunks are
+ * parsed, so the StAX factory is created once and each thread keeps one
+ * DOM builder that is reset between documents.
+ *
+ * The parsers never read anything but the document: external DTDs and
+ * external entities are not loaded, which would block on machines without
+ * network access, and secure processing caps how far internal entities
+ * may expand. The internal DTD subset is still read, so documents that
+ * declare their own entities load as before.
+ */
+public class XmlParsers {
+
+	// Characters all entity expansions of a document may add together
+	private static final int TOTAL_ENTITY_SIZE_LIMIT = 10000000;
+
+	// Ignored by parsers other than the one built into the JDK
+	private static final String TOTAL_ENTITY_SIZE = "jdk.xml.totalEntitySizeLimit";
+	private static final String IGNORE_EXTERNAL_DTD = "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+	private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+	private static volatile boolean namespaceAware = true;
+
+	private static XMLInputFactory inputFactory;
+	private static DocumentBuilderFactory builderFactory;
+
+	private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<>();
+
+	// Whether prefixes must be declared. Set before the first document is
+	// parsed, without namespace awareness undeclared prefixes are accepted.
+	public static synchronized void setNamespaceAware(boolean aware) {
+
+		namespaceAware = aware;
+		inputFactory = null;
+		builderFactory = null;
+	}
+
+	// The factory is safe to share once configured, it only creates readers
+	public static synchronized XMLInputFactory inputFactory() {
+
+		if (inputFactory == null) {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, namespaceAware);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+			setProperty(factory, IGNORE_EXTERNAL_DTD, true);
+			setProperty(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			setProperty(factory, TOTAL_ENTITY_SIZE, String.valueOf(TOTAL_ENTITY_SIZE_LIMIT));
+
+			// Any other external reference reads as empty
+			factory.setXMLResolver((publicId, systemId, baseUri, namespace) -> new ByteArrayInputStream(new byte[0]));
+			inputFactory = factory;
+		}
+		return inputFactory;
+	}
+
+	// Builder of the calling thread, ready for a new document
+	public static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+
+		DocumentBuilder builder = builders.get();
+		if (builder == null || builder.isNamespaceAware() != namespaceAware) {
+			builder = builderFactory().newDocumentBuilder();
+			builders.set(builder);
+		} else {
+			builder.reset();
+		}
+
+		// Any other external reference reads as empty, reset() may drop it
+		builder.setEntityResolver((publicId, systemId) -> new InputSource(new StringReader("")));
+		return builder;
+	}
+
+	private static synchronized DocumentBuilderFactory builderFactory() throws ParserConfigurationException {
+
+		if (builderFactory == null) {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(namespaceAware);
+			factory.setValidating(false);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(true);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature(LOAD_EXTERNAL_DTD, false);
+			setAttribute(factory, XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+			setAttribute(factory, TOTAL_ENTITY_SIZE, String.valueOf(TOTAL_ENTITY_SIZE_LIMIT));
+			builderFactory = factory;
+		}
+		return builderFactory;
+	}
+
+	private static void setProperty(XMLInputFactory factory, String name, Object value) {
+
+		try {
+			factory.setProperty(name, value);
+		} catch (IllegalArgumentException e) {
+			// Not supported by this implementation
+		}
+	}
+
+	private static void setAttribute(DocumentBuilderFactory factory, String name, Object value) {
+
+		try {
+			factory.setAttribute(name, value);
+		} catch (IllegalArgumentException e) {
+			// Not supported by this implementation
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.JTree;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+import java.awt.Font;
+import java.util.function.Consumer;
+
+/**
+ * JTree over an XmlTreeModel that can expand or collapse a whole subtree at
+ * once. Expanding node by node sends an expansion event per node, and the
+ * tree UI updates its rows and size for each one; here the expanded state
+ * of the subtree is set first and listeners get a few events. The nodes to
+ * expand are found in the background by an ExpandWorker and marked on the
+ * EDT in short slices.
+ *
+ * Expansion goes breadth-first and stops at a row and depth limit, so the
+ * root of a huge document does not open into more rows than the tree can
+ * lay out in reasonable time. Rows have a fixed height, which spares the
+ * layout from measuring every row.
+ */
+public class XmlTree extends JTree {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_EXPAND_ROWS = 50000;
+
+	// Room for the node icons besides the text
+	private static final int ICON_HEIGHT = 16;
+	private static final int ROW_PADDING = 2;
+
+	// Rows an expansion may add and levels it may open below the node
+	private int expandRows = DEFAULT_EXPAND_ROWS;
+	private int expandDepth = Integer.MAX_VALUE;
+
+	// Expansion events are held back while a subtree is expanded
+	private boolean expandingSubtree;
+	private ExpandWorker expandWorker;
+
+	public XmlTree(XmlTreeModel model) {
+
+		super(model);
+		addTreeWillExpandListener(model);
+		setFont(getFont());
+	}
+
+	public void setExpandLimits(int rows, int depth) {
+		expandRows = rows;
+		expandDepth = depth;
+	}
+
+	// Expands a node and the nodes below it in the background, level by
+	// level, until the row or depth limit. whenDone gets true when it is
+	// complete, false if the row limit stopped it and null if it was
+	// cancelled. An expansion still running is cancelled first.
+	public void expandSubtree(TreePath path, Consumer<Boolean> whenDone) {
+
+		cancelExpansion();
+		expandWorker = new ExpandWorker(this, path, expandRows, expandDepth, whenDone);
+		expandWorker.execute();
+	}
+
+	public void cancelExpansion() {
+
+		if (expandWorker != null) {
+			expandWorker.cancel(false);
+			expandWorker = null;
+		}
+	}
+
+	// Marks a node expanded without telling the UI yet, called by the
+	// ExpandWorker under an already expanded parent
+	void setExpandedQuietly(TreePath path) {
+
+		expandingSubtree = true;
+		try {
+			setExpandedState(path, true);
+		} finally {
+			expandingSubtree = false;
+		}
+	}
+
+	// The UI picks up the expanded descendants along with the path
+	void expansionApplied(TreePath path) {
+		fireTreeExpanded(path);
+	}
+
+	// Collapses a node and every node below it
+	public void collapseSubtree(TreePath path) {
+
+		cancelExpansion();
+
+		boolean selectionBelow = false;
+		TreePath[] selection = getSelectionPaths();
+		for (int i = 0; selection != null && i < selection.length; i++) {
+			selectionBelow |= path.isDescendant(selection[i]);
+		}
+
+		// A structure change makes the tree and its UI forget the expanded
+		// state below the node, then only the node itself is collapsed
+		((XmlTreeModel) getModel()).nodeStructureChanged((TreeNode) path.getLastPathComponent());
+		collapsePath(path);
+
+		// Like collapsePath, a selection inside the subtree moves to the node
+		if (selectionBelow && getSelectionCount() == 0) {
+			setSelectionPath(path);
+		}
+	}
+
+	// Keeps the fixed row height in step with the font
+	@Override
+	public void setFont(Font font) {
+
+		super.setFont(font);
+		if (font != null) {
+			setRowHeight(Math.max(getFontMetrics(font).getHeight(), ICON_HEIGHT) + ROW_PADDING);
+		}
+	}
+
+	@Override
+	public void fireTreeExpanded(TreePath path) {
+
+		if (!expandingSubtree) {
+			super.fireTreeExpanded(path);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.JTree;
+import javax.swing.tree.DefaultTreeCellRenderer;
+
+import java.awt.Component;
+
+/**
+ * Renders an XmlTreeNode from its tag, attributes and leaf text, written
+ * straight from the index into a reused buffer instead of going through
+ * toString(). Text and attribute values longer than a row can usefully
+ * show are cut, so a node holding a large block of text does not make its
+ * row as wide as the text.
+ */
+public class XmlTreeCellRenderer extends DefaultTreeCellRenderer {
+
+	private static final long serialVersionUID = 1L;
+
+	// Characters of leaf text shown in a row
+	private static final int MAX_DISPLAYED_TEXT = 256;
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	@Override
+	public Component getTreeCellRendererComponent(JTree tree, Object value, boolean selected, boolean expanded,
+			boolean leaf, int row, boolean hasFocus) {
+
+		if (!(value instanceof XmlTreeNode)) {
+			return super.getTreeCellRendererComponent(tree, value, selected, expanded, leaf, row, hasFocus);
+		}
+
+		// The text is set below, the default renderer only sets up colors
+		// and icons
+		super.getTreeCellRendererComponent(tree, "", selected, expanded, leaf, row, hasFocus);
+
+		buffer.setLength(0);
+		((XmlTreeNode) value).appendDisplayText(buffer, MAX_DISPLAYED_TEXT);
+		setText(buffer.toString());
+
+		return this;
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Tree model over an XmlIndex. Nodes are created on demand when a path is
+ * expanded, so the number of Swing node objects follows what the user has
+ * opened rather than the size of the document.
+ *
+ * While a loader is still filling the index, the model only shows the
+ * elements that were present at the last indexGrew(). Only elements that
+ * were open at that point can gain children, so only their nodes need to
+ * be updated on the next call.
+ *
+ * When part of a watched document is reloaded, elementsReplaced() renumbers
+ * the existing nodes and only reports the children that were removed or
+ * inserted, so expanded paths and the selection outside them are kept.
+ */
+public class XmlTreeModel extends DefaultTreeModel implements TreeWillExpandListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private final XmlIndex index;
+
+	// Elements that were open at the last indexGrew(), from the root down,
+	// and their child counts at that point
+	private int[] openElements = new int[0];
+	private int[] openChildCounts = new int[0];
+
+	public XmlTreeModel(XmlIndex index) {
+
+		super(null);
+		this.index = index;
+		indexGrew();
+	}
+
+	public XmlIndex getIndex() {
+		return index;
+	}
+
+	// Path to an element id, creating the nodes along the way if needed
+	public TreePath getPath(int id) {
+
+		// The element may have been added after the last update
+		indexGrew();
+
+		IntList ancestors = new IntList();
+		synchronized (index) {
+			for (int ancestor = id; ancestor > 0; ancestor = index.parent(ancestor)) {
+				ancestors.add(ancestor);
+			}
+		}
+
+		XmlTreeNode node = (XmlTreeNode) getRoot();
+		TreePath path = new TreePath(node);
+
+		for (int i = ancestors.size() - 1; i >= 0; i--) {
+			node = node.childWithId(ancestors.get(i), true);
+			path = path.pathByAddingChild(node);
+		}
+
+		return path;
+	}
+
+	// Shows the elements a loader added since the last call. Called on the EDT.
+	public void indexGrew() {
+
+		synchronized (index) {
+			if (index.size() == 0) {
+				return;
+			}
+
+			int[] shownOpenElements = openElements;
+			openElements = index.openElements();
+			openChildCounts = new int[openElements.length];
+			for (int i = 0; i < openElements.length; i++) {
+				openChildCounts[i] = index.childCount(openElements[i]);
+			}
+
+			if (getRoot() == null) {
+				setRoot(new XmlTreeNode(this, 0, null));
+				return;
+			}
+
+			XmlTreeNode node = (XmlTreeNode) getRoot();
+			for (int i = 0; i < shownOpenElements.length && node != null; i++) {
+				if (i > 0) {
+					node = node.childWithId(shownOpenElements[i], false);
+				}
+				if (node != null) {
+					showNewChildren(node);
+				}
+			}
+		}
+	}
+
+	// Updates the nodes after XmlIndex.replaceSubtrees() applied a diff.
+	// Called on the EDT once the index has been updated.
+	public void elementsReplaced(DocumentDiff diff) {
+
+		XmlTreeNode root = (XmlTreeNode) getRoot();
+		if (root == null) {
+			return;
+		}
+
+		// All nodes get their new ids before any event is fired, and the
+		// changed ones only keep their remaining children at first, so the
+		// listeners see a consistent tree after the removals
+		List<XmlTreeNode> changedNodes = new ArrayList<>();
+		List<int[]> removedIndices = new ArrayList<>();
+		List<Object[]> removedNodes = new ArrayList<>();
+		List<XmlTreeNode[]> newChildren = new ArrayList<>();
+		List<int[]> insertedIndices = new ArrayList<>();
+		List<XmlTreeNode> relabeledNodes = new ArrayList<>();
+
+		synchronized (index) {
+			Deque<XmlTreeNode> pending = new ArrayDeque<>();
+			pending.push(root);
+
+			while (!pending.isEmpty()) {
+				XmlTreeNode node = pending.pop();
+				int oldId = node.getId();
+				int id = diff.newId(oldId);
+				XmlTreeNode[] children = node.loadedChildren();
+
+				node.setId(id);
+				node.forgetNames();
+				if (diff.isRelabeled(oldId) || (children == null && diff.isChanged(oldId))) {
+					relabeledNodes.add(node);
+				}
+				if (children == null) {
+					continue;
+				}
+				if (!diff.isChanged(oldId)) {
+					for (XmlTreeNode child : children) {
+						pending.push(child);
+					}
+					continue;
+				}
+
+				IntList removed = new IntList();
+				List<XmlTreeNode> kept = new ArrayList<>();
+				IntList keptIds = new IntList();
+				for (int i = 0; i < children.length; i++) {
+					int childId = diff.newId(children[i].getId());
+					if (childId < 0) {
+						removed.add(i);
+					} else {
+						kept.add(children[i]);
+						keptIds.add(childId);
+						pending.push(children[i]);
+					}
+				}
+
+				// Kept children stay in order, the others are new elements
+				XmlTreeNode[] loaded = new XmlTreeNode[index.childCount(id)];
+				IntList inserted = new IntList();
+				int next = 0;
+				int child = index.firstChild(id);
+				for (int i = 0; i < loaded.length; i++) {
+					if (next < kept.size() && keptIds.get(next) == child) {
+						loaded[i] = kept.get(next++);
+					} else {
+						loaded[i] = new XmlTreeNode(this, child, node);
+						inserted.add(i);
+					}
+					child = index.nextSibling(child);
+				}
+
+				Object[] removedChildren = new Object[removed.size()];
+				for (int i = 0; i < removedChildren.length; i++) {
+					removedChildren[i] = children[removed.get(i)];
+				}
+
+				node.setChildren(kept.toArray(new XmlTreeNode[0]));
+				changedNodes.add(node);
+				removedIndices.add(removed.toArray());
+				removedNodes.add(removedChildren);
+				newChildren.add(loaded);
+				insertedIndices.add(inserted.toArray());
+			}
+		}
+
+		for (int i = 0; i < changedNodes.size(); i++) {
+			if (removedIndices.get(i).length > 0) {
+				nodesWereRemoved(changedNodes.get(i), removedIndices.get(i), removedNodes.get(i));
+			}
+		}
+		for (int i = 0; i < changedNodes.size(); i++) {
+			changedNodes.get(i).setChildren(newChildren.get(i));
+			if (insertedIndices.get(i).length > 0) {
+				nodesWereInserted(changedNodes.get(i), insertedIndices.get(i));
+			}
+		}
+		for (XmlTreeNode node : relabeledNodes) {
+			nodeChanged(node);
+		}
+	}
+
+	// Number of children shown for an element, called with the index locked
+	int shownChildCount(int id) {
+
+		int depth = index.depth(id);
+		if (depth < openElements.length && openElements[depth] == id) {
+			return openChildCounts[depth];
+		}
+		return index.childCount(id);
+	}
+
+	private void showNewChildren(XmlTreeNode node) {
+
+		if (node.isLoaded()) {
+			int loadedCount = node.getChildCount();
+			int added = node.appendChildren();
+
+			if (added > 0) {
+				int[] childIndices = new int[added];
+				for (int i = 0; i < added; i++) {
+					childIndices[i] = loadedCount + i;
+				}
+				nodesWereInserted(node, childIndices);
+			}
+		}
+
+		// The label of a closed leaf now includes its text
+		if (node.getChildCount() == 0) {
+			nodeChanged(node);
+		}
+	}
+
+	@Override
+	public void treeWillExpand(TreeExpansionEvent event) {
+		((XmlTreeNode) event.getPath().getLastPathComponent()).loadChildren();
+	}
+
+	@Override
+	public void treeWillCollapse(TreeExpansionEvent event) {
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ *  XML Tree Viewer
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package orbisoftware.xml_tree_viewer;
+
+import javax.swing.tree.TreeNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Tree node for one element of an XmlIndex. Child nodes are only created
+ * the first time the node is expanded; until then the node only knows its
+ * element id. Once created, the child nodes only change when the model
+ * appends elements that arrived from a loader, or when part of a watched
+ * document is reloaded and the elements are renumbered.
+ */
+public class XmlTreeNode implements TreeNode {
+
+	private static final XmlTreeNode[] NO_CHILDREN = new XmlTreeNode[0];
+
+	private final XmlTreeModel model;
+	private int id;
+	private final XmlTreeNode parent;
+	private XmlTreeNode[] children;
+
+	// Text of the first "name" child and the dotted names from the root,
+	// kept once they can no longer change while the document loads
+	private String name;
+	private boolean nameKnown;
+	private String namePath;
+
+	XmlTreeNode(XmlTreeModel model, int id, XmlTreeNode parent) {
+		this.model = model;
+		this.id = id;
+		this.parent = parent;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getTagName() {
+
+		XmlIndex index = model.getIndex();
+		synchronized (index) {
+			return index.tagName(id);
+		}
+	}
+
+	public String getLeafText() {
+
+		XmlIndex index = model.getIndex();
+		synchronized (index) {
+			return index.leafText(id);
+		}
+	}
+
+	// Text of the first "name" child, or null
+	public String getName() {
+
+		synchronized (model.getIndex()) {
+			findName();
+		}
+		return name;
+	}
+
+	// Appends the label with the attributes as shown in the tree, with long
+	// text cut short
+	public void appendDisplayText(StringBuilder buffer, int maxTextLength) {
+
+		XmlIndex index = model.getIndex();
+		synchronized (index) {
+			index.appendDisplayLabel(id, buffer, maxTextLength);
+		}
+	}
+
+	// Changes after a reload renumbered the elements
+	void setId(int id) {
+		this.id = id;
+	}
+
+	// Child nodes, or null when they have not been created
+	XmlTreeNode[] loadedChildren() {
+		return children;
+	}
+
+	void setChildren(XmlTreeNode[] children) {
+		this.children = children;
+	}
+
+	// Drops the name and name path, the children may have changed
+	void forgetNames() {
+
+		name = null;
+		nameKnown = false;
+		namePath = null;
+	}
+
+	public boolean isLoaded() {
+		return children != null;
+	}
+
+	// Creates the child nodes from the index
+	public void loadChildren() {
+
+		if (children != null) {
+			return;
+		}
+
+		XmlIndex index = model.getIndex();
+		synchronized (index) {
+			int count = model.shownChildCount(id);
+			if (count == 0) {
+				children = NO_CHILDREN;
+				return;
+			}
+
+			XmlTreeNode[] loaded = new XmlTreeNode[count];
+			int child = index.firstChild(id);
+			for (int i = 0; i < count; i++) {
+				loaded[i] = new XmlTreeNode(model, child, this);
+				child = index.nextSibling(child);
+			}
+			children = loaded;
+		}
+	}
+
+	// Adds nodes for children the loader added since the children were
+	// created, returns how many were added. Called with the index locked.
+	int appendChildren() {
+
+		XmlIndex index = model.getIndex();
+		int loadedCount = children.length;
+		int count = model.shownChildCount(id);
+		if (count == loadedCount) {
+			return 0;
+		}
+
+		XmlTreeNode[] grown = Arrays.copyOf(children, count);
+		int child = loadedCount > 0 ? index.nextSibling(children[loadedCount - 1].id) : index.firstChild(id);
+		for (int i = loadedCount; i < count; i++) {
+			grown[i] = new XmlTreeNode(model, child, this);
+			child = index.nextSibling(child);
+		}
+		children = grown;
+
+		return count - loadedCount;
+	}
+
+	// Child node for an element id, children are sorted by id. Returns null
+	// when the child nodes have not been created and load is false.
+	XmlTreeNode childWithId(int childId, boolean load) {
+
+		if (load) {
+			loadChildren();
+		} else if (children == null) {
+			return null;
+		}
+
+		int low = 0;
+		int high = children.length - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleId = children[middle].id;
+
+			if (middleId < childId) {
+				low = middle + 1;
+			} else if (middleId > childId) {
+				high = middle - 1;
+			} else {
+				return children[middle];
+			}
+		}
+		return null;
+	}
+
+	// Names of the nodes from the root down to this one, joined with dots.
+	// Computed once per node from the parent's path, ancestors without a
+	// path yet are done first without recursion.
+	public String getNamePath() {
+
+		if (namePath != null) {
+			return namePath;
+		}
+
+		List<XmlTreeNode> pending = new ArrayList<>();
+		XmlTreeNode node = this;
+		while (node != null && node.namePath == null) {
+			pending.add(node);
+			node = node.parent;
+		}
+
+		String path = node != null ? node.namePath : "";
+		synchronized (model.getIndex()) {
+			for (int i = pending.size() - 1; i >= 0; i--) {
+				path = pending.get(i).extendNamePath(path);
+			}
+		}
+		return path;
+	}
+
+	// Path of this node given the path of its parent, kept when final.
+	// Called with the index locked.
+	private String extendNamePath(String parentPath) {
+
+		boolean known = findName();
+		String path;
+
+		if (name == null) {
+			path = parentPath;
+		} else if (parentPath.isEmpty()) {
+			path = name;
+		} else {
+			path = parentPath + "." + name;
+		}
+
+		if (known && (parent == null || parent.namePath != null)) {
+			namePath = path;
+		}
+		return path;
+	}
+
+	// Looks for the first child element "name" with text, returns whether
+	// the result is final. Called with the index locked.
+	private boolean findName() {
+
+		if (nameKnown) {
+			return true;
+		}
+
+		XmlIndex index = model.getIndex();
+		name = index.elementName(id);
+		if (name != null) {
+			nameKnown = true;
+			return true;
+		}
+
+		// A name child may still arrive while the element is open
+		nameKnown = !index.isOpen(id);
+		return nameKnown;
+	}
+
+	@Override
+	public TreeNode getChildAt(int childIndex) {
+
+		loadChildren();
+		return children[childIndex];
+	}
+
+	@Override
+	public int getChildCount() {
+
+		XmlTreeNode[] loaded = children;
+		if (loaded != null) {
+			return loaded.length;
+		}
+
+		synchronized (model.getIndex()) {
+			return model.shownChildCount(id);
+		}
+	}
+
+	@Override
+	public TreeNode getParent() {
+		return parent;
+	}
+
+	@Override
+	public int getIndex(TreeNode node) {
+
+		loadChildren();
+		for (int i = 0; i < children.length; i++) {
+			if (children[i] == node) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean getAllowsChildren() {
+		return true;
+	}
+
+	@Override
+	public boolean isLeaf() {
+		return getChildCount() == 0;
+	}
+
+	@Override
+	public Enumeration<? extends TreeNode> children() {
+
+		loadChildren();
+		return Collections.enumeration(Arrays.asList(children));
+	}
+
+	@Override
+	public String toString() {
+
+		XmlIndex index = model.getIndex();
+		synchronized (index) {
+			return index.label(id);
+		}
+	}
+}
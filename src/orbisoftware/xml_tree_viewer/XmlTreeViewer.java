@@ -18,6 +18,8 @@
 package orbisoftware.xml_tree_viewer;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.tree.*;
 import org.w3c.dom.*;
 import javax.xml.parsers.*;
@@ -26,7 +28,15 @@ import jargs.gnu.CmdLineParser;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.*;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -34,15 +44,82 @@ import java.util.stream.IntStream;
 
 public class XmlTreeViewer {
 
-	private static List<TreePath> searchMatches = new ArrayList<>();
+	private static IntList searchMatches = new IntList();
 	private static int currentMatchIndex = -1;
 
+	// Running or last search, its mode and query and the index size when
+	// it started, -1 if the document was still loading
+	private static SearchWorker searchWorker;
+	private static String searchedMode = "";
+	private static String searchedQuery = "";
+	private static int searchedSize;
+
+	// Search modes, substring of the node labels, any of several terms, a
+	// regular expression or a path query
+	private static final String TEXT_MODE = "Text";
+	private static final String TERMS_MODE = "Any term";
+	private static final String REGEX_MODE = "Regex";
+	private static final String XPATH_MODE = "XPath";
+
+	// Pause in typing before the search starts
+	private static final int SEARCH_DELAY_MS = 250;
+
+	// Files larger than this fraction of the maximum heap are memory-mapped
+	private static final int MAPPED_HEAP_FRACTION = 4;
+
 	private static void printUsage() {
 
 		System.out.println("Usage: XmlTreeViewer [OPTION]...");
 		System.out.println("View Xml tree.");
 		System.out.println();
-		System.out.println("   -f, --file         XML file for viewing");
+		System.out.println("   -f, --file         XML file for viewing. May be given several times, and");
+		System.out.println("                      may name a directory (its *.xml files) or a quoted");
+		System.out.println("                      pattern such as 'modules/*.xml'. Several files are");
+		System.out.println("                      shown side by side below a common root. Files");
+		System.out.println("                      compressed with gzip, xz or zstd are read directly");
+		System.out.println("   -l, --loader       Tree loader: stax (streaming), mmap (memory-mapped,");
+		System.out.println("                      for files larger than the heap, which still needs");
+		System.out.println("                      24 bytes per element) or dom. By default mmap is");
+		System.out.println("                      used for large files and stax otherwise");
+		System.out.println("   -t, --threads      Threads used by the stax loader, the children of the");
+		System.out.println("                      root element are parsed in parallel (default 1).");
+		System.out.println("                      Several files are loaded in parallel, by default on");
+		System.out.println("                      one thread per processor");
+		System.out.println("   -m, --memory-limit Megabytes the index of several files may take, later");
+		System.out.println("                      files are left out (default half the heap)");
+		System.out.println("   -r, --expand-rows  Rows that Expand All may add below the selected node,");
+		System.out.println("                      opened level by level (default " + XmlTree.DEFAULT_EXPAND_ROWS + ")");
+		System.out.println("   -d, --expand-depth Levels below the selected node that Expand All opens");
+		System.out.println("                      (default no limit)");
+		System.out.println("   -n, --no-snapshot  Parse the file even if a snapshot of an earlier load is");
+		System.out.println("                      saved, and do not save one");
+		System.out.println("   -w, --watch        Reload the parts of the file that change while it is");
+		System.out.println("                      viewed (stax and dom loaders)");
+		System.out.println("   -q, --query        Print the labels of the matching nodes instead of");
+		System.out.println("                      opening the viewer. Files are parsed a few MB of");
+		System.out.println("                      root children at a time, except for compressed");
+		System.out.println("                      files, files with a DOCTYPE and xpath queries with");
+		System.out.println("                      a predicate on the root or a position among its");
+		System.out.println("                      children, for which the whole file is parsed into");
+		System.out.println("                      memory");
+		System.out.println("   -s, --search-mode  How --query is matched: text (default), terms,");
+		System.out.println("                      regex or xpath, as in the viewer");
+		System.out.println("   -p, --print-paths  Print the name paths of the matching nodes, or of");
+		System.out.println("                      all named nodes without --query");
+		System.out.println("   -c, --count        Print only the number of matching nodes");
+		System.out.println("                      (all nodes without --query)");
+		System.out.println("                      Several files are searched in parallel like they");
+		System.out.println("                      are loaded");
+		System.out.println("       --no-namespaces");
+		System.out.println("                      Accept undeclared namespace prefixes. Element and");
+		System.out.println("                      attribute names are shown as written either way");
+		System.out.println("       --stall-ms     Print the stack of the event dispatch thread when it");
+		System.out.println("                      is busy for longer than this many ms, for example");
+		System.out.println("                      1000 (default 0, never)");
+		System.out.println("       --stats        Print the time and allocation of each phase and the");
+		System.out.println("                      size of the document on exit. The phases are also");
+		System.out.println("                      recorded as JFR events, and shown by the Statistics");
+		System.out.println("                      button");
 		System.out.println("   -h, --help         Show this help message");
 
 	}
@@ -52,6 +129,20 @@ public class XmlTreeViewer {
 		CmdLineParser parser = new CmdLineParser();
 
 		CmdLineParser.Option fileOption = parser.addStringOption('f', "file");
+		CmdLineParser.Option loaderOption = parser.addStringOption('l', "loader");
+		CmdLineParser.Option threadsOption = parser.addIntegerOption('t', "threads");
+		CmdLineParser.Option memoryLimitOption = parser.addIntegerOption('m', "memory-limit");
+		CmdLineParser.Option expandRowsOption = parser.addIntegerOption('r', "expand-rows");
+		CmdLineParser.Option expandDepthOption = parser.addIntegerOption('d', "expand-depth");
+		CmdLineParser.Option noSnapshotOption = parser.addBooleanOption('n', "no-snapshot");
+		CmdLineParser.Option watchOption = parser.addBooleanOption('w', "watch");
+		CmdLineParser.Option queryOption = parser.addStringOption('q', "query");
+		CmdLineParser.Option searchModeOption = parser.addStringOption('s', "search-mode");
+		CmdLineParser.Option printPathsOption = parser.addBooleanOption('p', "print-paths");
+		CmdLineParser.Option countOption = parser.addBooleanOption('c', "count");
+		CmdLineParser.Option noNamespacesOption = parser.addBooleanOption("no-namespaces");
+		CmdLineParser.Option stallOption = parser.addIntegerOption("stall-ms");
+		CmdLineParser.Option statsOption = parser.addBooleanOption("stats");
 		CmdLineParser.Option helpOption = parser.addBooleanOption('h', "help");
 
 		try {
@@ -62,7 +153,23 @@ public class XmlTreeViewer {
 			System.exit(0);
 		}
 
-		String fileValue = (String) parser.getOptionValue(fileOption);
+		List<?> fileValues = parser.getOptionValues(fileOption);
+		String fileValue = fileValues.isEmpty() ? null : (String) fileValues.get(0);
+		String loaderValue = (String) parser.getOptionValue(loaderOption);
+		Integer threadsValue = (Integer) parser.getOptionValue(threadsOption);
+		Integer memoryLimitValue = (Integer) parser.getOptionValue(memoryLimitOption,
+				(int) (Runtime.getRuntime().maxMemory() / 2 / 1000000));
+		Integer expandRowsValue = (Integer) parser.getOptionValue(expandRowsOption, XmlTree.DEFAULT_EXPAND_ROWS);
+		Integer expandDepthValue = (Integer) parser.getOptionValue(expandDepthOption, Integer.MAX_VALUE);
+		Boolean noSnapshotValue = (Boolean) parser.getOptionValue(noSnapshotOption, Boolean.FALSE);
+		Boolean watchValue = (Boolean) parser.getOptionValue(watchOption, Boolean.FALSE);
+		String queryValue = (String) parser.getOptionValue(queryOption);
+		String searchModeValue = (String) parser.getOptionValue(searchModeOption, "text");
+		Boolean printPathsValue = (Boolean) parser.getOptionValue(printPathsOption, Boolean.FALSE);
+		Boolean countValue = (Boolean) parser.getOptionValue(countOption, Boolean.FALSE);
+		Boolean noNamespacesValue = (Boolean) parser.getOptionValue(noNamespacesOption, Boolean.FALSE);
+		Integer stallValue = (Integer) parser.getOptionValue(stallOption, 0);
+		Boolean statsValue = (Boolean) parser.getOptionValue(statsOption, Boolean.FALSE);
 		Boolean helpValue = (Boolean) parser.getOptionValue(helpOption);
 
 		if ((helpValue != null) || (fileValue == null)) {
@@ -70,15 +177,132 @@ public class XmlTreeViewer {
 			System.exit(0);
 		}
 
+		if (threadsValue != null && threadsValue < 1) {
+			System.out.println("The number of threads must be at least 1");
+			printUsage();
+			System.exit(0);
+		}
+
+		if (stallValue < 0) {
+			System.out.println("The stall threshold must not be negative");
+			printUsage();
+			System.exit(0);
+		}
+
+		if (memoryLimitValue < 1) {
+			System.out.println("The memory limit must be at least 1 MB");
+			printUsage();
+			System.exit(0);
+		}
+
+		// Parsers are configured once for all the files
+		XmlParsers.setNamespaceAware(!noNamespacesValue);
+
+		List<File> files = MultiFileLoader.expand(fileValues);
+		if (files.isEmpty()) {
+			System.out.println("No files match " + fileValues);
+			System.exit(1);
+		}
+
+		// Search from the command line, without creating any window
+		if (queryValue != null || printPathsValue || countValue) {
+			if (loaderValue != null) {
+				System.err.println("The loader cannot be chosen for --query, --print-paths or --count,"
+						+ " files are searched a run of root children at a time");
+				System.exit(2);
+			}
+			int status = runBatchSearch(files, queryValue, searchModeValue, printPathsValue, countValue,
+					threadsValue != null ? threadsValue : Runtime.getRuntime().availableProcessors());
+			if (statsValue) {
+				// The results are on standard output
+				System.err.print(PhaseStats.summary());
+			}
+			System.exit(status);
+		}
+
+		if (stallValue > 0) {
+			new EdtWatchdog(stallValue).start();
+		}
+
+		if (statsValue) {
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(PhaseStats.summary())));
+		}
+
+		if (threadsValue == null) {
+			threadsValue = files.size() > 1 ? Runtime.getRuntime().availableProcessors() : 1;
+		}
+
 		// Load XML file
-		File xmlFile = new File(fileValue); // Replace with your file
-		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		Document doc = builder.parse(xmlFile);
-		doc.getDocumentElement().normalize();
-
-		// Build tree
-		DefaultMutableTreeNode rootTreeNode = createTreeNode(doc.getDocumentElement());
-		JTree tree = new JTree(rootTreeNode);
+		File xmlFile = files.get(0);
+
+		if (files.size() > 1) {
+			// Only the parsed index can hold several documents
+			if (loaderValue != null && !loaderValue.equals("stax")) {
+				System.out.println("Several files are loaded with the stax loader");
+			}
+			loaderValue = "stax";
+			noSnapshotValue = true;
+			if (watchValue) {
+				System.out.println("Changes are only watched for a single file");
+				watchValue = false;
+			}
+		}
+
+		boolean compressed = DecompressingInputStream.isCompressed(xmlFile);
+		if (compressed && "mmap".equals(loaderValue)) {
+			System.out.println("Compressed files are not mapped, using the stax loader");
+			loaderValue = "stax";
+		}
+
+		if (loaderValue == null) {
+			// Files that would not fit the heap as parsed text are mapped
+			loaderValue = !compressed && xmlFile.length() > Runtime.getRuntime().maxMemory() / MAPPED_HEAP_FRACTION
+					? "mmap" : "stax";
+		}
+
+		if (!loaderValue.equals("stax") && !loaderValue.equals("mmap") && !loaderValue.equals("dom")) {
+			System.out.println("Unknown loader '" + loaderValue + "'");
+			printUsage();
+			System.exit(0);
+		}
+
+		if (expandRowsValue < 1 || expandDepthValue < 1) {
+			System.out.println("The expand rows and depth must be at least 1");
+			printUsage();
+			System.exit(0);
+		}
+
+		if (watchValue && loaderValue.equals("mmap")) {
+			System.out.println("Changes are not watched with the mmap loader");
+			watchValue = false;
+		}
+
+		if (watchValue && compressed) {
+			System.out.println("Changes are not watched in compressed files");
+			watchValue = false;
+		}
+
+		// A snapshot saved by an earlier load of the file replaces parsing it
+		long startTime = System.nanoTime();
+		long loadedSize = xmlFile.length();
+		long loadedModified = xmlFile.lastModified();
+		IndexSnapshot snapshot = null;
+		if (!noSnapshotValue) {
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+				phase.setDetail("snapshot");
+				snapshot = IndexSnapshot.load(xmlFile, loaderValue.equals("mmap"));
+			}
+		}
+
+		XmlIndex index = snapshot != null ? snapshot.getIndex() : createIndex(xmlFile, loaderValue);
+		LabelIndex labelIndex = snapshot != null ? snapshot.getLabelIndex() : new LabelIndex(index);
+		TagIndex tagIndex = snapshot != null ? snapshot.getTagIndex() : new TagIndex(index);
+
+		// Tree view, nodes are created as paths are expanded
+		XmlTreeModel treeModel = new XmlTreeModel(index);
+		XmlTree tree = new XmlTree(treeModel);
+		tree.setExpandLimits(expandRowsValue, expandDepthValue);
+		tree.setCellRenderer(new XmlTreeCellRenderer());
 		tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
 		JScrollPane scrollPane = new JScrollPane(tree);
 
@@ -102,44 +326,23 @@ public class XmlTreeViewer {
 		tree.addTreeSelectionListener(e -> {
 			TreePath selectedPath = tree.getSelectionPath();
 			if (selectedPath != null) {
-				StringBuilder namePathBuilder = new StringBuilder();
-
-				for (int i = 0; i < selectedPath.getPathCount(); i++) {
-					Object node = selectedPath.getPathComponent(i);
-					String nameValue = null;
-
-					// Check if this node has a child that is a "name" node
-					if (nameValue == null && node instanceof DefaultMutableTreeNode) {
-						DefaultMutableTreeNode treeNode = (DefaultMutableTreeNode) node;
-						Enumeration<?> children = treeNode.children();
-						while (children.hasMoreElements()) {
-							Object child = children.nextElement();
-							String[] childParts = child.toString().split(" = ", 2);
-							if (childParts.length == 2 && childParts[0].trim().equals("name")) {
-								nameValue = childParts[1].trim();
-								break;
-							}
-						}
-					}
-
-					// Append to the path if a Name value was found
-					if (nameValue != null) {
-						if (namePathBuilder.length() > 0) {
-							namePathBuilder.append(".");
-						}
-						namePathBuilder.append(nameValue);
-					}
+				// Dotted "name" values of the selected node and its ancestors,
+				// cached per node
+				try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.SELECTION)) {
+					phase.setDetail("name path");
+					pathField.setText(((XmlTreeNode) selectedPath.getLastPathComponent()).getNamePath());
 				}
-
-				pathField.setText(namePathBuilder.toString());
 			}
 		});
 
 		// Search Controls
+		JComboBox<String> searchModeBox = new JComboBox<>(
+				new String[] { TEXT_MODE, TERMS_MODE, REGEX_MODE, XPATH_MODE });
 		JTextField searchField = new JTextField(20);
 		JButton searchButton = new JButton("Find");
 		JButton nextButton = new JButton("Next");
 		JButton prevButton = new JButton("Previous");
+		JLabel searchStatus = new JLabel(" ");
 		String[] fontSizes = { "10", "15", "20", "25" };
 		JComboBox<String> fontComboBox = new JComboBox<>(fontSizes);
 		fontComboBox.setPreferredSize(new Dimension(100, fontComboBox.getPreferredSize().height));
@@ -161,35 +364,38 @@ public class XmlTreeViewer {
 		nextButton.setEnabled(false);
 		prevButton.setEnabled(false);
 
-		// Search Logic
-		searchButton.addActionListener(e -> {
-			String query = searchField.getText().trim().toLowerCase();
-			searchMatches.clear();
-			currentMatchIndex = -1;
-
-			if (!query.isEmpty()) {
-				Enumeration<TreeNode> enumeration = rootTreeNode.depthFirstEnumeration();
-				while (enumeration.hasMoreElements()) {
-					DefaultMutableTreeNode node = (DefaultMutableTreeNode) enumeration.nextElement();
-					String nodeText = node.getUserObject().toString().toLowerCase();
-					if (nodeText.contains(query)) {
-						searchMatches.add(new TreePath(node.getPath()));
-					}
-				}
+		// Search Logic, runs in the background as the user types
+		javax.swing.Timer searchTimer = new javax.swing.Timer(SEARCH_DELAY_MS,
+				e -> startSearch((String) searchModeBox.getSelectedItem(), searchField.getText().trim(), false, tree,
+						labelIndex, tagIndex, nextButton, prevButton, searchStatus));
+		searchTimer.setRepeats(false);
+		searchModeBox.addActionListener(e -> searchTimer.restart());
 
-				if (!searchMatches.isEmpty()) {
-					currentMatchIndex = 0;
-					highlightCurrentMatch(tree);
-					nextButton.setEnabled(true);
-					prevButton.setEnabled(true);
-				} else {
-					JOptionPane.showMessageDialog(null, "No matches found.");
-					nextButton.setEnabled(false);
-					prevButton.setEnabled(false);
-				}
+		searchField.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				searchTimer.restart();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				searchTimer.restart();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
 			}
 		});
 
+		ActionListener findListener = e -> {
+			searchTimer.stop();
+			startSearch((String) searchModeBox.getSelectedItem(), searchField.getText().trim(), true, tree, labelIndex,
+					tagIndex, nextButton, prevButton, searchStatus);
+		};
+		searchButton.addActionListener(findListener);
+		searchField.addActionListener(findListener);
+
 		nextButton.addActionListener(e -> {
 			if (!searchMatches.isEmpty()) {
 				currentMatchIndex = (currentMatchIndex + 1) % searchMatches.size();
@@ -220,17 +426,21 @@ public class XmlTreeViewer {
 		gbc.gridx = 0;
 		searchFontPanel.add(new JLabel("Search:"), gbc);
 		gbc.gridx = 1;
-		searchFontPanel.add(searchField, gbc);
+		searchFontPanel.add(searchModeBox, gbc);
 		gbc.gridx = 2;
-		searchFontPanel.add(searchButton, gbc);
+		searchFontPanel.add(searchField, gbc);
 		gbc.gridx = 3;
-		searchFontPanel.add(prevButton, gbc);
+		searchFontPanel.add(searchButton, gbc);
 		gbc.gridx = 4;
-		searchFontPanel.add(nextButton, gbc);
+		searchFontPanel.add(prevButton, gbc);
 		gbc.gridx = 5;
-		searchFontPanel.add(new JLabel("Font size:"), gbc);
+		searchFontPanel.add(nextButton, gbc);
 		gbc.gridx = 6;
+		searchFontPanel.add(new JLabel("Font size:"), gbc);
+		gbc.gridx = 7;
 		searchFontPanel.add(fontComboBox, gbc);
+		gbc.gridx = 8;
+		searchFontPanel.add(searchStatus, gbc);
 		gbc.weightx = 1.0;
 
 		topPanel.add(pathPanel, BorderLayout.NORTH);
@@ -239,11 +449,23 @@ public class XmlTreeViewer {
 		// Expand/Collapse Panel
 		JButton expandButton = new JButton("Expand All Below Selected Node");
 		JButton collapseButton = new JButton("Collapse All Below Selected Node");
+		JLabel expandStatus = new JLabel();
 
 		expandButton.addActionListener(e -> {
 			TreePath selectedPath = tree.getSelectionPath();
 			if (selectedPath != null) {
-				expandAll(tree, selectedPath);
+				// The tree stays usable while the nodes are found and expanded
+				PhaseStats.Phase phase = PhaseStats.start(PhaseStats.EXPAND);
+				expandStatus.setText("Expanding...");
+				tree.expandSubtree(selectedPath, complete -> {
+					phase.setDetail(complete == null ? "expand, cancelled" : "expand");
+					phase.close();
+					if (complete == null || complete) {
+						expandStatus.setText("");
+					} else {
+						expandStatus.setText("Stopped at the limit of " + expandRowsValue + " rows");
+					}
+				});
 			} else {
 				JOptionPane.showMessageDialog(null, "Please select a node first.");
 			}
@@ -252,102 +474,431 @@ public class XmlTreeViewer {
 		collapseButton.addActionListener(e -> {
 			TreePath selectedPath = tree.getSelectionPath();
 			if (selectedPath != null) {
-				collapseAll(tree, selectedPath);
+				try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.EXPAND)) {
+					phase.setDetail("collapse");
+					tree.collapseSubtree(selectedPath);
+				}
+				expandStatus.setText("");
 			} else {
 				JOptionPane.showMessageDialog(null, "Please select a node first.");
 			}
 		});
 
+		// Time spent in each phase so far
+		JButton statsButton = new JButton("Statistics");
+		statsButton.addActionListener(e -> {
+			JTextArea statsArea = new JTextArea(PhaseStats.summary());
+			statsArea.setEditable(false);
+			statsArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+			JOptionPane.showMessageDialog(null, statsArea, "Statistics", JOptionPane.PLAIN_MESSAGE);
+		});
+
 		JPanel buttonPanel = new JPanel(new FlowLayout());
 		buttonPanel.add(expandButton);
 		buttonPanel.add(collapseButton);
+		buttonPanel.add(statsButton);
+		buttonPanel.add(expandStatus);
+
+		// Load progress
+		JProgressBar progressBar = new JProgressBar();
+		JButton cancelButton = new JButton("Cancel");
+
+		JPanel loadPanel = new JPanel(new BorderLayout(5, 0));
+		loadPanel.setBorder(BorderFactory.createEmptyBorder(0, 4, 4, 4));
+		loadPanel.add(progressBar, BorderLayout.CENTER);
+		loadPanel.add(cancelButton, BorderLayout.EAST);
 
-		JFrame frame = new JFrame("Xml Viewer - Viewing " + fileValue);
+		JPanel bottomPanel = new JPanel(new BorderLayout());
+		bottomPanel.add(buttonPanel, BorderLayout.CENTER);
+		bottomPanel.add(loadPanel, BorderLayout.SOUTH);
+
+		JFrame frame = new JFrame("Xml Viewer - Viewing " + (files.size() > 1 ? files.size() + " files" : fileValue));
 		frame.setLayout(new BorderLayout());
 		frame.add(topPanel, BorderLayout.NORTH);
 		frame.add(scrollPane, BorderLayout.CENTER);
-		frame.add(buttonPanel, BorderLayout.SOUTH);
+		frame.add(bottomPanel, BorderLayout.SOUTH);
 		frame.setSize(900, 600);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.setVisible(true);
+
+		if (snapshot != null) {
+			progressBar.setStringPainted(true);
+			progressBar.setValue(progressBar.getMaximum());
+			progressBar.setString(String.format("Loaded %,d nodes from a snapshot in %.1f s", index.size(),
+					(System.nanoTime() - startTime) / 1e9));
+			cancelButton.setVisible(false);
+			PhaseStats.documentLoaded(index);
+			if (watchValue) {
+				watchFile(xmlFile, loadedSize, loadedModified, tree, labelIndex, tagIndex, nextButton, prevButton,
+						searchStatus, progressBar);
+			}
+			return;
+		}
+
+		// Parse in the background, the tree fills in as elements arrive
+		LoadWorker loadWorker = new LoadWorker(files, loaderValue, threadsValue, memoryLimitValue * 1000000L,
+				treeModel, labelIndex, tagIndex, progressBar, cancelButton, !noSnapshotValue);
+		if (watchValue) {
+			// Changes are watched once the whole document is loaded
+			loadWorker.addPropertyChangeListener(e -> {
+				if (e.getNewValue() == SwingWorker.StateValue.DONE && !loadWorker.isCancelled()) {
+					synchronized (index) {
+						if (index.size() == 0 || index.isOpen(0)) {
+							return;
+						}
+					}
+					watchFile(xmlFile, loadedSize, loadedModified, tree, labelIndex, tagIndex, nextButton,
+							prevButton, searchStatus, progressBar);
+				}
+			});
+		}
+		loadWorker.execute();
 	}
 
-	// Highlight search result
-	private static void highlightCurrentMatch(JTree tree) {
+	// Reloads the parts of the file that change. Search results are moved
+	// to the new ids of the elements, a search still running is started
+	// again.
+	private static void watchFile(File xmlFile, long loadedSize, long loadedModified, XmlTree tree,
+			LabelIndex labelIndex, TagIndex tagIndex, JButton nextButton, JButton prevButton, JLabel searchStatus,
+			JProgressBar progressBar) {
 
-		if (!searchMatches.isEmpty() && currentMatchIndex >= 0) {
-			TreePath path = searchMatches.get(currentMatchIndex);
-			tree.setSelectionPath(path);
-			tree.scrollPathToVisible(path);
+		XmlTreeModel treeModel = (XmlTreeModel) tree.getModel();
+
+		new FileWatcher(xmlFile, treeModel, labelIndex, tagIndex, loadedSize, loadedModified,
+				new FileWatcher.Listener() {
+
+					private boolean searchInterrupted;
+
+					@Override
+					public void reloading() {
+
+						// Expanded nodes are found by element id, which the reload changes
+						tree.cancelExpansion();
+
+						searchInterrupted = searchWorker != null && !searchWorker.isDone();
+						if (searchWorker != null) {
+							searchWorker.cancel(false);
+						}
+					}
+
+					@Override
+					public void reloaded(DocumentDiff diff, long elapsedNanos) {
+
+						int[] matches = searchMatches.toArray();
+						int current = currentMatchIndex;
+						searchMatches.clear();
+						currentMatchIndex = -1;
+
+						for (int i = 0; i < matches.length; i++) {
+							int id = diff.newId(matches[i]);
+							if (id >= 0) {
+								if (i <= current) {
+									currentMatchIndex = searchMatches.size();
+								}
+								searchMatches.add(id);
+							}
+						}
+						if (currentMatchIndex < 0 && !searchMatches.isEmpty()) {
+							currentMatchIndex = 0;
+						}
+
+						// The matches are not complete for a query extended later
+						searchedSize = -1;
+
+						if (searchInterrupted) {
+							startSearch(searchedMode, searchedQuery, false, tree, labelIndex, tagIndex, nextButton,
+									prevButton, searchStatus);
+						} else if (!searchedQuery.isEmpty()) {
+							nextButton.setEnabled(!searchMatches.isEmpty());
+							prevButton.setEnabled(!searchMatches.isEmpty());
+							searchStatus.setText(String.format("%,d matches", searchMatches.size()));
+						}
+
+						progressBar.setString(String.format("Reloaded %s, %,d nodes removed and %,d added in %.2f s",
+								xmlFile.getName(), diff.removedCount(), diff.insertedCount(), elapsedNanos / 1e9));
+					}
+
+					@Override
+					public void reloadFailed(String message) {
+						progressBar.setString(message);
+					}
+				}).start();
+	}
+
+	// Empty index for the selected loader
+	private static XmlIndex createIndex(File xmlFile, String loader) {
+
+		if (loader.equals("mmap")) {
+			try {
+				return MappedXmlIndex.open(xmlFile);
+			} catch (IOException e) {
+				System.out.println(e.getMessage() + ", using the stax loader");
+			}
 		}
+		return new ParsedXmlIndex();
 	}
 
-	// Recursively build tree
-	private static DefaultMutableTreeNode createTreeNode(Node xmlNode) {
+	// Fills the index with the selected loader
+	static void loadIndex(File xmlFile, String loader, int threads, XmlIndex index, LoadMonitor monitor)
+			throws Exception {
 
-		String displayText = xmlNode.getNodeName();
+		if (index instanceof MappedXmlIndex) {
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+				phase.setDetail("mmap");
+				((MappedXmlIndex) index).scan(monitor);
+			}
+			return;
+		}
 
-		if (xmlNode.getNodeType() == Node.ELEMENT_NODE) {
-			String textContent = xmlNode.getTextContent().trim();
-			boolean hasChildElements = false;
-			NodeList children = xmlNode.getChildNodes();
+		if (loader.equals("dom")) {
+			DocumentBuilder builder = XmlParsers.documentBuilder();
+			Document doc;
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE);
+					InputStream in = DecompressingInputStream.open(
+							new ProgressInputStream(new BufferedInputStream(new FileInputStream(xmlFile)), monitor))) {
+				phase.setDetail("dom");
+				doc = builder.parse(in, xmlFile.toURI().toString());
+			}
 
-			for (int i = 0; i < children.getLength(); i++) {
-				if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
-					hasChildElements = true;
-					break;
+			// The document is already in memory, so it is indexed in one batch
+			try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.BUILD)) {
+				phase.setDetail("dom");
+				synchronized (index) {
+					createTreeNode(doc.getDocumentElement(), (ParsedXmlIndex) index);
+					index.trimToSize();
 				}
 			}
+			monitor.checkpoint(xmlFile.length());
+			return;
+		}
 
-			if (!hasChildElements && !textContent.isEmpty()) {
-				displayText += " = " + textContent;
+		// Build index straight from the event stream
+		try (PhaseStats.Phase phase = PhaseStats.start(PhaseStats.PARSE)) {
+			if (threads > 1) {
+				phase.setDetail("stax, " + threads + " threads");
+				ParallelXmlLoader.load(xmlFile, (ParsedXmlIndex) index, threads, monitor);
+			} else {
+				phase.setDetail("stax");
+				StaxTreeLoader.load(xmlFile, (ParsedXmlIndex) index, monitor);
 			}
 		}
+	}
 
-		DefaultMutableTreeNode treeNode = new DefaultMutableTreeNode(displayText);
+	// Query of a search mode. Text queries must be in lower case. Throws
+	// IllegalArgumentException for an invalid path or pattern.
+	private static ElementQuery createQuery(String mode, String query, XmlIndex index, LabelIndex labelIndex,
+			TagIndex tagIndex) {
+
+		if (mode.equals(XPATH_MODE)) {
+			return new PathQuery(index, tagIndex, query);
+		} else if (mode.equals(REGEX_MODE)) {
+			return LabelQuery.regex(index, labelIndex, query);
+		} else if (mode.equals(TERMS_MODE)) {
+			return LabelQuery.anyTerm(index, labelIndex, TermMatcher.split(query));
+		}
+		return LabelQuery.text(index, labelIndex, query);
+	}
 
-		NodeList childNodes = xmlNode.getChildNodes();
-		for (int i = 0; i < childNodes.getLength(); i++) {
-			Node child = childNodes.item(i);
-			if (child.getNodeType() == Node.ELEMENT_NODE) {
-				treeNode.add(createTreeNode(child));
+	// Runs --query, --print-paths or --count on the files and returns the
+	// exit status
+	private static int runBatchSearch(List<File> files, String query, String searchMode, boolean printPaths,
+			boolean count, int threads) throws InterruptedException {
+
+		String mode;
+		switch (searchMode) {
+		case "text":
+			mode = TEXT_MODE;
+			break;
+		case "terms":
+			mode = TERMS_MODE;
+			break;
+		case "regex":
+			mode = REGEX_MODE;
+			break;
+		case "xpath":
+			mode = XPATH_MODE;
+			break;
+		default:
+			System.out.println("Unknown search mode '" + searchMode + "'");
+			printUsage();
+			return 2;
+		}
+
+		String text = mode.equals(TEXT_MODE) && query != null ? query.toLowerCase() : query;
+		BatchSearch.QueryFactory queryFactory = null;
+		if (query != null) {
+			queryFactory = (index, tagIndex) -> createQuery(mode, text, index, new LabelIndex(index), tagIndex);
+			try {
+				// Reports an invalid query before any file is read
+				ParsedXmlIndex empty = new ParsedXmlIndex();
+				queryFactory.create(empty, new TagIndex(empty));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Invalid query: " + e.getMessage());
+				return 2;
+			}
+		}
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+		return new BatchSearch(queryFactory, printPaths, count, out).run(files, threads) ? 0 : 1;
+	}
+
+	// Starts a search for the query, replacing the running one. Matches
+	// are added to searchMatches as they are found; the first one is
+	// highlighted as soon as it arrives.
+	private static void startSearch(String mode, String query, boolean explicit, JTree tree, LabelIndex labelIndex,
+			TagIndex tagIndex, JButton nextButton, JButton prevButton, JLabel searchStatus) {
+
+		XmlIndex index = ((XmlTreeModel) tree.getModel()).getIndex();
+		int[] previousMatches = null;
+
+		if (mode.equals(TEXT_MODE)) {
+			query = query.toLowerCase();
+		}
+
+		if (searchWorker != null) {
+			// Matches of an extended text query are among the previous ones,
+			// as long as the elements have not changed since
+			if (searchWorker.isDone() && !searchWorker.isCancelled() && mode.equals(TEXT_MODE)
+					&& searchedMode.equals(TEXT_MODE) && !searchedQuery.isEmpty() && query.contains(searchedQuery)) {
+				synchronized (index) {
+					if (index.size() == searchedSize) {
+						previousMatches = searchMatches.toArray();
+					}
+				}
+			}
+			searchWorker.cancel(false);
+			searchWorker = null;
+		}
+
+		searchMatches.clear();
+		currentMatchIndex = -1;
+		nextButton.setEnabled(false);
+		prevButton.setEnabled(false);
+		searchedMode = mode;
+		searchedQuery = query;
+
+		if (query.isEmpty()) {
+			searchStatus.setText(" ");
+			return;
+		}
+
+		ElementQuery elementQuery;
+		try {
+			elementQuery = createQuery(mode, query, index, labelIndex, tagIndex);
+		} catch (IllegalArgumentException e) {
+			// Usually a path or pattern that is still being typed
+			searchedQuery = "";
+			searchStatus.setText("Invalid query");
+			if (explicit) {
+				JOptionPane.showMessageDialog(null, "Invalid query: " + e.getMessage());
 			}
+			return;
 		}
 
-		return treeNode;
+		synchronized (index) {
+			searchedSize = index.size() > 0 && !index.isOpen(0) ? index.size() : -1;
+		}
+		searchStatus.setText("Searching...");
+
+		searchWorker = new SearchWorker(index, elementQuery, previousMatches, searchMatches,
+				new SearchWorker.Listener() {
+
+					@Override
+					public void matchesAdded() {
+
+						if (currentMatchIndex < 0) {
+							currentMatchIndex = 0;
+							highlightCurrentMatch(tree);
+							nextButton.setEnabled(true);
+							prevButton.setEnabled(true);
+						}
+						searchStatus.setText(String.format("Searching, %,d matches", searchMatches.size()));
+					}
+
+					@Override
+					public void searchFinished() {
+
+						if (searchMatches.isEmpty()) {
+							searchStatus.setText("No matches");
+							if (explicit) {
+								JOptionPane.showMessageDialog(null, "No matches found.");
+							}
+						} else {
+							searchStatus.setText(String.format("%,d matches", searchMatches.size()));
+						}
+					}
+				});
+		searchWorker.execute();
 	}
 
-	// Expand helper
-	private static void expandAll(JTree tree, TreePath parent) {
+	// Highlight search result
+	private static void highlightCurrentMatch(JTree tree) {
+
+		if (!searchMatches.isEmpty() && currentMatchIndex >= 0) {
+			TreePath path = ((XmlTreeModel) tree.getModel()).getPath(searchMatches.get(currentMatchIndex));
+			tree.setSelectionPath(path);
+			tree.scrollPathToVisible(path);
+		}
+	}
+
+	// Recursively add the element and its child elements to the index.
+	// Leaf text is gathered from the direct text children while scanning
+	// for child elements, instead of calling getTextContent() which walks
+	// the whole subtree at every level.
+	// Walks the DOM with the parent links instead of recursion, so deeply
+	// nested documents cannot overflow the stack
+	private static void createTreeNode(Node xmlNode, ParsedXmlIndex index) {
+
+		index.startElement(xmlNode.getNodeName());
+		addAttributes(xmlNode, index);
+
+		Node parent = xmlNode;
+		Node child = xmlNode.getFirstChild();
+
+		while (true) {
+			if (child == null) {
+				// Last child of parent done
+				index.endElement();
+				if (parent == xmlNode) {
+					return;
+				}
+				child = parent.getNextSibling();
+				parent = parent.getParentNode();
+				continue;
+			}
 
-		TreeNode node = (TreeNode) parent.getLastPathComponent();
-		if (node.getChildCount() >= 0) {
-			for (Enumeration<?> e = node.children(); e.hasMoreElements();) {
-				TreeNode n = (TreeNode) e.nextElement();
-				TreePath path = parent.pathByAddingChild(n);
-				expandAll(tree, path);
+			switch (child.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				index.startElement(child.getNodeName());
+				addAttributes(child, index);
+				parent = child;
+				child = child.getFirstChild();
+				continue;
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				index.appendText(child.getNodeValue());
+				break;
+			case Node.ENTITY_REFERENCE_NODE:
+				index.appendText(child.getTextContent());
+				break;
+			default:
+				break;
 			}
+			child = child.getNextSibling();
 		}
-		tree.expandPath(parent);
 	}
 
-	// Collapse helper
-	private static void collapseAll(JTree tree, TreePath parent) {
+	// Adds the attributes of an element just started. Namespace
+	// declarations are left out, as the stax loader does not report them.
+	private static void addAttributes(Node element, ParsedXmlIndex index) {
 
-		TreeNode node = (TreeNode) parent.getLastPathComponent();
-		if (node.getChildCount() >= 0) {
-			for (Enumeration<?> e = node.children(); e.hasMoreElements();) {
-				TreeNode n = (TreeNode) e.nextElement();
-				TreePath path = parent.pathByAddingChild(n);
-				collapseAll(tree, path);
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Node attribute = attributes.item(i);
+			String name = attribute.getNodeName();
+			if (!name.equals("xmlns") && !name.startsWith("xmlns:")) {
+				index.addAttribute(name, attribute.getNodeValue());
 			}
 		}
-		tree.collapsePath(parent);
 	}
 }
-        
-        
-        
-        
-        
-       
\ No newline at end of file